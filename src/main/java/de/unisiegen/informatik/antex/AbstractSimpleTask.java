@@ -2,7 +2,14 @@ package de.unisiegen.informatik.antex;
 
 import java.io.File;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.Delete;
@@ -19,6 +26,7 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 	private boolean cleanup;
 	private LinkedList deletes;
 	private LinkedList mappers;
+	private int threads;
 	private File tofile;
 	
 	/**
@@ -29,6 +37,7 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 		this.cleanup = false;
 		this.deletes = new LinkedList();
 		this.mappers = new LinkedList();
+		this.threads = 1;
 		this.tofile = null;
 	}
 	
@@ -72,6 +81,24 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 		this.mappers.add(mapper);
 	}
 	
+	/**
+	 * Return the number of input files processed in parallel.
+	 * 
+	 * @return the number of input files processed in parallel.
+	 */
+	public int getThreads() {
+		return this.threads;
+	}
+	
+	/**
+	 * Set the number of input files processed in parallel.
+	 * 
+	 * @param threads the number of input files processed in parallel.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
 	/**
 	 * Retrieve the tofile.
 	 * 
@@ -130,6 +157,8 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 		LinkedList deletes = new LinkedList(this.deletes);
 		
 		// process each input file to produce output
+		List infiles = new LinkedList();
+		List outfiles = new LinkedList();
 		for (int i = 0; i < files.length; ++i) {
 			File infile = files[i];
 			
@@ -159,17 +188,8 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 			
 			// check if we need to do anything after all
 			if (fileUtils.fileNameEquals(infile, outfile) || !fileUtils.isUpToDate(infile, outfile)) {
-				// create the directories for the outfile
-				SystemUtils.createLeadingDirectories(outfile);
-				
-				// create a temporary file for the actual task (delete on exit)
-				File tmpfile = fileUtils.createTempFile("tmp", outfile.getName(), outfile.getParentFile(), true);
-
-				// perform the actual processing
-				execute(infile, tmpfile);
-
-				// rename tmpfile to outfile
-				SystemUtils.renameFile(tmpfile, outfile);
+				infiles.add(infile);
+				outfiles.add(outfile);
 			}
 			
 			// schedule deletion of the input file if requested (and different from outfile)
@@ -181,6 +201,33 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 				deletes.add(delete);
 			}
 		}
+		
+		// perform the actual processing
+		Map failures = new LinkedHashMap();
+		if (getWorkers() != null) {
+			executeRemote((File[])infiles.toArray(new File[0]), (File[])outfiles.toArray(new File[0]), failures);
+		}
+		else if (getThreads() > 1 && infiles.size() > 1) {
+			executeParallel(infiles, outfiles, failures);
+		}
+		else {
+			for (Iterator it = infiles.iterator(), oit = outfiles.iterator(); it.hasNext(); ) {
+				File infile = (File)it.next();
+				try {
+					executeFile(infile, (File)oit.next());
+				}
+				catch (BuildException e) {
+					recordFailure(failures, infile, e);
+				}
+			}
+		}
+		
+		// report the failures (if not failing on error)
+		if (!failures.isEmpty()) {
+			reportFailures(failures, infiles.size());
+			logWarning("Skipping deletes as there were failures");
+			return;
+		}
 
 		// run all Delete tasks
 		for (Iterator it = deletes.iterator(); it.hasNext(); ) {
@@ -188,4 +235,97 @@ public abstract class AbstractSimpleTask extends AbstractTask {
 			delete.execute();
 		}
 	}	
+	
+	/**
+	 * Process the <code>infiles</code> to produce the <code>outfiles</code> using a pool
+	 * of threads. If the task fails on the first error, no new input files are started once
+	 * processing of an input file failed, otherwise the failures are recorded in <code>failures</code>.
+	 * 
+	 * @param infiles the input files.
+	 * @param outfiles the output files.
+	 * @param failures the map to record the failures.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private void executeParallel(List infiles, List outfiles, final Map failures) throws BuildException {
+		final boolean[] failed = new boolean[1];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(getThreads(), infiles.size()));
+		try {
+			// submit a job for each input file
+			List futures = new LinkedList();
+			for (Iterator it = infiles.iterator(), oit = outfiles.iterator(); it.hasNext(); ) {
+				final File infile = (File)it.next();
+				final File outfile = (File)oit.next();
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						synchronized (failed) {
+							if (failed[0]) {
+								return;
+							}
+						}
+						try {
+							executeFile(infile, outfile);
+						}
+						catch (BuildException e) {
+							if (isFailonerror()) {
+								synchronized (failed) {
+									failed[0] = true;
+								}
+							}
+							recordFailure(failures, infile, e);
+						}
+					}
+				}));
+			}
+			
+			// wait for all jobs and report the first error
+			BuildException exception = null;
+			for (Iterator it = futures.iterator(); it.hasNext(); ) {
+				try {
+					((Future)it.next()).get();
+				}
+				catch (ExecutionException e) {
+					if (exception == null) {
+						exception = (e.getCause() instanceof BuildException)
+							? (BuildException)e.getCause()
+							: new BuildException(e.getCause());
+					}
+				}
+				catch (InterruptedException e) {
+					throw new BuildException("Interrupted while waiting for " + getTaskName(), e);
+				}
+			}
+			if (exception != null) {
+				throw exception;
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Process <code>infile</code> to produce the <code>outfile</code> using a temporary file
+	 * that is renamed to <code>outfile</code> afterwards.
+	 * 
+	 * @param infile the input file.
+	 * @param outfile the output file.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private void executeFile(File infile, File outfile) throws BuildException {
+		FileUtils fileUtils = FileUtils.getFileUtils();
+		
+		// create the directories for the outfile
+		SystemUtils.createLeadingDirectories(outfile);
+		
+		// create a temporary file for the actual task (delete on exit)
+		File tmpfile = fileUtils.createTempFile("tmp", outfile.getName(), outfile.getParentFile(), true);
+
+		// perform the actual processing
+		execute(infile, tmpfile);
+
+		// rename tmpfile to outfile (unless unchanged)
+		publishFile(tmpfile, outfile);
+	}
 }
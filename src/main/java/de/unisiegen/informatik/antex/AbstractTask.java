@@ -1,20 +1,27 @@
 package de.unisiegen.informatik.antex;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
-import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
 import org.apache.tools.ant.taskdefs.Echo.EchoLevel;
+import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.resources.FileResource;
+import org.apache.tools.ant.util.FileUtils;
 
 /**
  * Abstract base class for Ant tasks.
@@ -23,9 +30,21 @@ import org.apache.tools.ant.types.resources.FileResource;
  */
 public abstract class AbstractTask extends Task {
 	private File destdir;
+	private Environment env;
+	private boolean failonerror;
 	private File file;
 	private List fileSets;
+	private List limits;
+	private File logdir;
+	private Set logFiles;
+	private int memorybudget;
+	private int outputBufferSize;
+	private String secret;
+	private boolean skipUnchanged;
+	private File texcachedir;
+	private long timeout;
 	private boolean verbose;
+	private String workers;
 	
 	/**
 	 * Initialize the latex task.
@@ -33,9 +52,21 @@ public abstract class AbstractTask extends Task {
 	public void init() throws BuildException {
 		super.init();
 		this.destdir = getProject().getBaseDir();
+		this.env = new Environment();
+		this.failonerror = true;
 		this.file = null;
 		this.fileSets = new LinkedList();
+		this.limits = new LinkedList();
+		this.logdir = null;
+		this.logFiles = new HashSet();
+		this.memorybudget = 0;
+		this.outputBufferSize = 65536;
+		this.secret = null;
+		this.skipUnchanged = false;
+		this.texcachedir = null;
+		this.timeout = 0;
 		this.verbose = false;
+		this.workers = null;
 	}
 	
 	/**
@@ -56,6 +87,36 @@ public abstract class AbstractTask extends Task {
 		this.destdir = destdir;
 	}
 	
+	/**
+	 * Add an environment variable for the tools launched by this task.
+	 * 
+	 * @param var the environment variable.
+	 */
+	public void addEnv(Environment.Variable var) {
+		this.env.addVariable(var);
+	}
+	
+	/**
+	 * Check if the task fails on the first error.
+	 * 
+	 * @return <code>true</code> if the task fails on the first error, <code>false</code> if
+	 *         the remaining files are processed and the errors are reported at the end.
+	 */
+	public boolean isFailonerror() {
+		return this.failonerror;
+	}
+	
+	/**
+	 * Enable or disable failing on the first error. If disabled, the remaining files are
+	 * processed after an error, and all errors are reported at the end.
+	 * 
+	 * @param failonerror <code>true</code> to fail on the first error, <code>false</code> to
+	 *                    keep going.
+	 */
+	public void setFailonerror(boolean failonerror) {
+		this.failonerror = failonerror;
+	}
+	
 	/**
 	 * Return the TeX file.
 	 * 
@@ -92,6 +153,160 @@ public abstract class AbstractTask extends Task {
 		return this.fileSets;
 	}
 	
+	/**
+	 * Ant callback to create nested <code>&lt;limit&gt;</code>s.
+	 * 
+	 * @return a newly allocated ToolLimit.
+	 */
+	public ToolLimit createLimit() {
+		ToolLimit limit = new ToolLimit();
+		this.limits.add(limit);
+		return limit;
+	}
+	
+	/**
+	 * Return the directory to store the complete tool output for each document.
+	 * 
+	 * @return the directory for the tool output, or <code>null</code>.
+	 */
+	public File getLogdir() {
+		return this.logdir;
+	}
+	
+	/**
+	 * Set the directory to store the complete tool output for each document. The log file
+	 * of a document is named after its path relative to the base directory and the tool,
+	 * and contains the output of all runs of the tool for the document.
+	 * 
+	 * @param logdir the directory for the tool output, or <code>null</code>.
+	 */
+	public void setLogdir(File logdir) {
+		this.logdir = logdir;
+	}
+	
+	/**
+	 * Return the memory budget for concurrently running tools in megabytes.
+	 * 
+	 * @return the memory budget, or <code>0</code> if unlimited.
+	 */
+	public int getMemorybudget() {
+		return this.memorybudget;
+	}
+	
+	/**
+	 * Set the memory budget for concurrently running tools in megabytes. A tool is started
+	 * only if its estimated peak memory (configured using a nested <code>&lt;limit&gt;</code>
+	 * or observed for earlier runs of the tool) fits into the budget. The observed peak
+	 * memory is remembered only for the current build (per project), and not persisted
+	 * between builds.
+	 * 
+	 * @param memorybudget the memory budget, or <code>0</code> if unlimited.
+	 */
+	public void setMemorybudget(int memorybudget) {
+		this.memorybudget = memorybudget;
+	}
+	
+	/**
+	 * Return the number of bytes of tool output kept for error reporting.
+	 * 
+	 * @return the number of bytes of tool output kept.
+	 */
+	public int getOutputBufferSize() {
+		return this.outputBufferSize;
+	}
+	
+	/**
+	 * Set the number of bytes of tool output kept for error reporting.
+	 * 
+	 * @param outputBufferSize the number of bytes of tool output kept.
+	 */
+	public void setOutputBufferSize(int outputBufferSize) {
+		this.outputBufferSize = outputBufferSize;
+	}
+	
+	/**
+	 * Return the shared secret of the antex workers.
+	 * 
+	 * @return the shared secret, or <code>null</code>.
+	 */
+	public String getSecret() {
+		return this.secret;
+	}
+	
+	/**
+	 * Set the shared secret of the antex workers, which is required with the
+	 * <code>workers</code> attribute (see {@link WorkerTask}).
+	 * 
+	 * @param secret the shared secret, or <code>null</code>.
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+	
+	/**
+	 * Check if unchanged output files are kept.
+	 * 
+	 * @return <code>true</code> if existing output files with the same contents are kept.
+	 */
+	public boolean isSkipUnchanged() {
+		return this.skipUnchanged;
+	}
+	
+	/**
+	 * Enable or disable keeping of unchanged output files. If enabled, an existing output file
+	 * (and its timestamp) is kept if the newly generated output has the same contents, so that
+	 * later build steps consider it up to date.
+	 * 
+	 * @param skipUnchanged <code>true</code> to keep unchanged output files, <code>false</code> to
+	 *                      always replace them.
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+	
+	/**
+	 * Return the persistent TeX cache directory.
+	 * 
+	 * @return the TeX cache directory, or <code>null</code>.
+	 */
+	public File getTexcachedir() {
+		return this.texcachedir;
+	}
+	
+	/**
+	 * Set the persistent TeX cache directory. If set, the directory is used as
+	 * <code>TEXMFVAR</code> for the tools, so that generated fonts and filename databases
+	 * are reused by later builds and parallel jobs. The filename database of the cache is
+	 * built using <code>mktexlsr</code> (while holding a lock on the cache), and the
+	 * <code>TEXMFVAR</code> tree of the user is still searched using <code>TEXMFAUXTREES</code>.
+	 * The files generated by the tools themselves are added without any locking (see
+	 * {@link TexCache}).
+	 * 
+	 * @param texcachedir the TeX cache directory, or <code>null</code>.
+	 */
+	public void setTexcachedir(File texcachedir) {
+		this.texcachedir = texcachedir;
+	}
+	
+	/**
+	 * Return the timeout for each tool process in milliseconds.
+	 * 
+	 * @return the timeout, or <code>0</code> for no timeout.
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+	
+	/**
+	 * Set the timeout for each tool process in milliseconds. Tool processes that run longer
+	 * are killed (including the processes they started).
+	 * 
+	 * @param timeout the timeout, or <code>0</code> for no timeout.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
 	/**
 	 * Check if verbose mode is enabled.
 	 * 
@@ -110,6 +325,37 @@ public abstract class AbstractTask extends Task {
 		this.verbose = verbose;
 	}
 	
+	/**
+	 * Return the addresses of the antex workers that process the files.
+	 * 
+	 * @return the comma separated list of worker addresses, or <code>null</code>.
+	 */
+	public String getWorkers() {
+		return this.workers;
+	}
+	
+	/**
+	 * Set the addresses of the antex workers that process the files. If set, the files are
+	 * processed by the workers instead of locally (see {@link Coordinator}). An address may
+	 * be listed multiple times to process several files on the same worker in parallel.
+	 * Only the attributes and environment variables permitted by {@link RemoteProtocol} are
+	 * passed on to the workers, and the shared <code>secret</code> must be set. The workers
+	 * receive the files below the directory of the fileset of each file (or the directory of
+	 * the file if given by the <code>file</code> attribute), except for hidden files and the
+	 * output directories, so all inputs of a file must be below that directory. The state of
+	 * previous builds is only kept locally, so the workers always process the files
+	 * completely, and the attributes that rely on it (i.e. <code>incremental</code> and
+	 * <code>scratchdir</code> of the latex task) are local-only, while the files processed
+	 * successfully are not remembered when keeping going. Unchanged output files are still
+	 * kept with <code>skipUnchanged</code>.
+	 * 
+	 * @param workers the comma separated list of worker addresses (<code>host:port</code>),
+	 *                or <code>null</code>.
+	 */
+	public void setWorkers(String workers) {
+		this.workers = workers;
+	}
+	
 	/**
 	 * Execute this AbstractTask.
 	 * 
@@ -117,6 +363,16 @@ public abstract class AbstractTask extends Task {
 	 */
 	public void execute() throws BuildException {
 		super.execute();
+		
+		// start new log files for this run
+		synchronized (this.logFiles) {
+			this.logFiles.clear();
+		}
+		
+		// prepare the TeX cache directory
+		if (getTexcachedir() != null) {
+			TexCache.prepare(getTexcachedir(), this);
+		}
 	}
 	
 	/**
@@ -144,6 +400,78 @@ public abstract class AbstractTask extends Task {
 		return (File[])files.toArray(new File[0]);
 	}
 	
+	/**
+	 * Process the <code>infiles</code> on the workers to produce the <code>outfiles</code>.
+	 * If the task fails on the first error, the first failure is rethrown, otherwise the
+	 * failures are recorded in <code>failures</code>.
+	 * 
+	 * @param infiles the input files.
+	 * @param outfiles the output files.
+	 * @param failures the map to record the failures.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	protected void executeRemote(File[] infiles, File[] outfiles, Map failures) throws BuildException {
+		List jobs = new LinkedList();
+		for (int i = 0; i < infiles.length; ++i) {
+			jobs.add(new RemoteJob(infiles[i], outfiles[i], getBaseDirectory(infiles[i])));
+		}
+		new Coordinator(this, getWorkers(), getSecret(), this.env.getVariables()).execute(jobs);
+		
+		// publish the results before reporting the failures
+		for (Iterator it = jobs.iterator(); it.hasNext(); ) {
+			RemoteJob job = (RemoteJob)it.next();
+			if (job.getResult() != null) {
+				publishFile(job.getResult(), job.getOutfile());
+			}
+		}
+		for (Iterator it = jobs.iterator(); it.hasNext(); ) {
+			RemoteJob job = (RemoteJob)it.next();
+			if (job.getException() != null) {
+				if (isFailonerror() && job.getException() instanceof ToolException) {
+					logError(((ToolException)job.getException()).getOutput());
+				}
+				recordFailure(failures, job.getInfile(), job.getException());
+			}
+		}
+	}
+	
+	/**
+	 * Return the base directory of the input <code>file</code>, which is the directory of
+	 * the fileset containing the file, or the directory of the file itself.
+	 * 
+	 * @param file the absolute input file.
+	 * 
+	 * @return the base directory.
+	 */
+	private File getBaseDirectory(File file) {
+		FileUtils fileUtils = FileUtils.getFileUtils();
+		for (Iterator it = getFilesets().iterator(); it.hasNext(); ) {
+			File directory = ((FileSet)it.next()).getDir(getProject()).getAbsoluteFile();
+			if (fileUtils.isLeadingPath(directory, file)) {
+				return directory;
+			}
+		}
+		return file.getParentFile();
+	}
+	
+	/**
+	 * Return the directories for the output files of this task, which are not sent to the
+	 * workers.
+	 * 
+	 * @return the list of absolute directories.
+	 */
+	protected List getOutputDirectories() {
+		List directories = new LinkedList();
+		if (getDestdir() != null) {
+			directories.add(getDestdir().getAbsoluteFile());
+		}
+		if (getLogdir() != null) {
+			directories.add(getLogdir().getAbsoluteFile());
+		}
+		return directories;
+	}
+	
 	/**
 	 * Launch the given <code>commandline</code> using the Ant <code>Execute</code> class.
 	 * 
@@ -153,23 +481,239 @@ public abstract class AbstractTask extends Task {
 	 * @throws BuildException in case of an error.
 	 */
 	protected void launch(List commandline, File workingDirectory) throws BuildException {
+		launch(commandline, workingDirectory, null);
+	}
+	
+	/**
+	 * Launch the given <code>commandline</code> for <code>document</code> using the Ant
+	 * <code>Execute</code> class. The output of the command is kept in a bounded buffer,
+	 * which is logged if the command fails or verbose mode is enabled. If a log directory
+	 * is set, the complete output is also written to a log file for <code>document</code>.
+	 * The process is started once the {@link ToolScheduler} admits it, and killed if it
+	 * exceeds the timeout.
+	 * 
+	 * @param commandline the string list representing the command line to run.
+	 * @param workingDirectory the working directory to use for execution.
+	 * @param document the document processed by the command, or <code>null</code>.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	protected void launch(List commandline, File workingDirectory, File document) throws BuildException {
 		String[] cmdline = (String[])commandline.toArray(new String[0]);
-		ExecuteStreamHandler handler = new LogStreamHandler(this,
-				(isVerbose() ? EchoLevel.INFO.getLevel() : EchoLevel.VERBOSE.getLevel()),
-				EchoLevel.ERR.getLevel());
-		Execute execute = new Execute(handler);
+		RingBufferOutputStream output = new RingBufferOutputStream(getOutputBufferSize(), openLogFile(cmdline, document));
+		ExecuteStreamHandler handler = new PumpStreamHandler(output);
+		ToolWatchdog watchdog = new ToolWatchdog(getTimeout());
+		Execute execute = new Execute(handler, watchdog);
 		execute.setAntRun(getProject());
 		execute.setCommandline(cmdline);
+		execute.setEnvironment(getEnvironment());
 		execute.setWorkingDirectory(workingDirectory);
+		
+		// wait until the scheduler admits another process of this tool
+		String tool = new File(cmdline[0]).getName().replaceFirst("\\.exe$", "");
+		ToolScheduler scheduler = ToolScheduler.getScheduler(getProject());
+		long estimate;
 		try {
-			int exitValue = execute.execute();
-			if (Execute.isFailure(exitValue)) {
-				throw new BuildException(cmdline[0] + " terminated with exit code " + exitValue);
+			estimate = scheduler.acquire(tool, getLimit(tool), getMemorybudget());
+		}
+		catch (InterruptedException e) {
+			try {
+				output.close();
+			}
+			catch (IOException x) {
+				// ignore
 			}
+			throw new BuildException("Interrupted while waiting to execute " + cmdline[0], e);
+		}
+		
+		int exitValue;
+		try {
+			exitValue = execute.execute();
 		}
 		catch (IOException e) {
 			throw new BuildException("Failed to execute " + cmdline[0], e);
 		}
+		finally {
+			scheduler.release(tool, estimate, watchdog.getPeakMemory());
+			try {
+				output.close();
+			}
+			catch (IOException e) {
+				logWarning("Failed to write log file for " + document.getName());
+			}
+		}
+		if (watchdog.killedProcess()) {
+			throw new ToolException(cmdline[0] + " timed out after " + getTimeout() + " ms"
+					+ ((document != null) ? " processing " + document.getPath() : ""), output.toString());
+		}
+		if (Execute.isFailure(exitValue)) {
+			if (isFailonerror() && !output.isEmpty()) {
+				logError(output.toString());
+			}
+			throw new ToolException(cmdline[0] + " terminated with exit code " + exitValue, output.toString());
+		}
+		if (isVerbose() && !output.isEmpty()) {
+			logVerbose(output.toString());
+		}
+	}
+	
+	/**
+	 * Return the nested <code>&lt;limit&gt;</code> for the <code>tool</code>.
+	 * 
+	 * @param tool the tool name.
+	 * 
+	 * @return the limit for the <code>tool</code>, or <code>null</code>.
+	 */
+	private ToolLimit getLimit(String tool) {
+		for (Iterator it = this.limits.iterator(); it.hasNext(); ) {
+			ToolLimit limit = (ToolLimit)it.next();
+			if (tool.equals(limit.getName())) {
+				return limit;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the environment variables for the tools, combining the TeX cache variables
+	 * and the nested <code>&lt;env&gt;</code> elements.
+	 * 
+	 * @return the environment variables as <code>key=value</code> strings, or <code>null</code>.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	protected String[] getEnvironment() throws BuildException {
+		Map variables = new LinkedHashMap();
+		if (getTexcachedir() != null) {
+			String[] cacheVariables = TexCache.getEnvironment(getTexcachedir());
+			for (int i = 0; i < cacheVariables.length; ++i) {
+				variables.put(cacheVariables[i].substring(0, cacheVariables[i].indexOf('=')), cacheVariables[i]);
+			}
+		}
+		String[] envVariables = this.env.getVariables();
+		if (envVariables != null) {
+			for (int i = 0; i < envVariables.length; ++i) {
+				variables.put(envVariables[i].substring(0, envVariables[i].indexOf('=')), envVariables[i]);
+			}
+		}
+		return variables.isEmpty() ? null : (String[])variables.values().toArray(new String[0]);
+	}
+	
+	/**
+	 * Open the log file for the output of <code>cmdline</code> processing <code>document</code>.
+	 * The log file mirrors the path of <code>document</code> relative to the base directory
+	 * below the log directory, and collects the output of all tool runs for
+	 * <code>document</code> during this run of the task.
+	 * 
+	 * @param cmdline the command line.
+	 * @param document the document, or <code>null</code>.
+	 * 
+	 * @return the log file output stream, or <code>null</code> if no log directory is set.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private OutputStream openLogFile(String[] cmdline, File document) throws BuildException {
+		if (getLogdir() == null || document == null) {
+			return null;
+		}
+		String path = FileUtils.getFileUtils().removeLeadingPath(getProject().getBaseDir(), document.getAbsoluteFile());
+		if (new File(path).isAbsolute()) {
+			// not below the base directory
+			path = document.getName() + "-" + Integer.toHexString(document.getAbsolutePath().hashCode());
+		}
+		File logFile = new File(getLogdir(), path + "." + new File(cmdline[0]).getName() + ".log");
+		boolean append;
+		synchronized (this.logFiles) {
+			append = !this.logFiles.add(logFile);
+		}
+		try {
+			SystemUtils.createLeadingDirectories(logFile);
+			OutputStream out = new FileOutputStream(logFile, append);
+			try {
+				StringBuffer header = new StringBuffer("$");
+				for (int i = 0; i < cmdline.length; ++i) {
+					header.append(' ').append(cmdline[i]);
+				}
+				out.write(header.append('\n').toString().getBytes());
+			}
+			catch (IOException e) {
+				out.close();
+				throw e;
+			}
+			return out;
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to create log file " + logFile.getPath(), e);
+		}
+	}
+	
+	/**
+	 * Move the generated <code>source</code> file to <code>dest</code>. If skip unchanged mode is
+	 * enabled and <code>dest</code> already has the same contents, <code>source</code> is deleted
+	 * instead and <code>dest</code> is left untouched.
+	 * 
+	 * @param source the newly generated file.
+	 * @param dest the output file.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	protected void publishFile(File source, File dest) throws BuildException {
+		if (isSkipUnchanged() && SystemUtils.contentEquals(source, dest)) {
+			logVerbose("Keeping unchanged output file " + dest.getName());
+			if (!source.delete()) {
+				throw new BuildException("Failed to delete " + source.getPath());
+			}
+		}
+		else {
+			SystemUtils.renameFile(source, dest);
+		}
+	}
+	
+	/**
+	 * Record the <code>exception</code> for processing <code>document</code>. If the task fails on
+	 * the first error, the <code>exception</code> is rethrown.
+	 * 
+	 * @param failures the map of documents to exceptions.
+	 * @param document the document.
+	 * @param exception the exception.
+	 * 
+	 * @throws BuildException if the task fails on the first error.
+	 */
+	protected void recordFailure(Map failures, File document, BuildException exception) throws BuildException {
+		if (isFailonerror()) {
+			throw exception;
+		}
+		logVerbose("Failed to process " + document.getName() + ": " + exception.getMessage());
+		synchronized (failures) {
+			failures.put(document, exception);
+		}
+	}
+	
+	/**
+	 * Log a report about all <code>failures</code>, including the last lines of the output of
+	 * the failed tools.
+	 * 
+	 * @param failures the map of documents to exceptions.
+	 * @param count the number of processed documents.
+	 */
+	protected void reportFailures(Map failures, int count) {
+		if (failures.isEmpty()) {
+			return;
+		}
+		StringBuffer report = new StringBuffer();
+		report.append(failures.size() + " of " + count + " files failed:");
+		for (Iterator it = failures.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			BuildException exception = (BuildException)entry.getValue();
+			report.append("\n" + ((File)entry.getKey()).getPath() + ": " + exception.getMessage());
+			if (exception instanceof ToolException) {
+				String[] lines = ((ToolException)exception).getOutput().split("\\r?\\n");
+				for (int i = Math.max(lines.length - 20, 0); i < lines.length; ++i) {
+					report.append("\n\t" + lines[i]);
+				}
+			}
+		}
+		logError(report.toString());
 	}
 	
 	/**
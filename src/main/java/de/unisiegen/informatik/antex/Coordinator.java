@@ -0,0 +1,494 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Distributes the documents of an antex task to a pool of antex workers ({@link WorkerTask}).
+ * There is one connection per worker address, and each connection takes the next job from
+ * a shared queue once it is idle, so faster workers process more documents. The files below
+ * the base directory of a document (the directory of its fileset, or the directory of the
+ * document) are listed in a manifest, which is computed once per base directory and sent
+ * once per connection, and the files are transferred by digest, so each worker receives
+ * every distinct file only once. Hidden files and the output directories of the task are
+ * not sent. Jobs of a worker that dies or does not respond in time are put back into the
+ * queue and retried on the remaining workers, and the connection to the worker is
+ * reestablished a few times before the worker is given up.
+ * Each connection is authenticated using the shared secret of the workers.
+ * 
+ * @author Benedikt Meurer
+ */
+public class Coordinator {
+	private static int CONNECT_TIMEOUT = 10000;
+	private static int MAX_ATTEMPTS = 3;
+	private static int MAX_RUNS = 16;
+	private static int RETRY_DELAY = 1000;
+	private List addresses;
+	private Map attributes;
+	private String secret;
+	private String[] environment;
+	private Set excludes;
+	private Map files;
+	private Map manifests;
+	private int active;
+	private Set outfiles;
+	private int pending;
+	private LinkedList queue;
+	private Map rootIds;
+	private boolean stopped;
+	private AbstractTask task;
+	private int workers;
+	
+	/**
+	 * Allocate a new Coordinator.
+	 * 
+	 * @param task the task whose documents are distributed.
+	 * @param workers the comma separated list of worker addresses (<code>host:port</code>).
+	 * @param secret the shared secret of the workers.
+	 * @param environment the environment variables for the tools, or <code>null</code>.
+	 * 
+	 * @throws BuildException if the worker addresses are invalid or an environment variable
+	 *                        is not permitted on workers.
+	 */
+	public Coordinator(AbstractTask task, String workers, String secret, String[] environment) throws BuildException {
+		if (secret == null || secret.length() == 0) {
+			throw new BuildException("The secret attribute is required with workers");
+		}
+		this.addresses = new LinkedList();
+		String[] workerAddresses = workers.split(",");
+		for (int i = 0; i < workerAddresses.length; ++i) {
+			String address = workerAddresses[i].trim();
+			int colonIndex = address.lastIndexOf(':');
+			if (colonIndex <= 0) {
+				throw new BuildException("Invalid worker address " + address);
+			}
+			try {
+				int port = Integer.parseInt(address.substring(colonIndex + 1));
+				this.addresses.add(new InetSocketAddress(address.substring(0, colonIndex), port));
+			}
+			catch (NumberFormatException e) {
+				throw new BuildException("Invalid worker address " + address, e);
+			}
+		}
+		this.attributes = getAttributes(task);
+		this.environment = (environment != null) ? environment : new String[0];
+		for (int i = 0; i < this.environment.length; ++i) {
+			String name = this.environment[i].substring(0, Math.max(this.environment[i].indexOf('='), 0));
+			if (!RemoteProtocol.isPermittedVariable(name)) {
+				throw new BuildException("Environment variable " + name + " is not permitted on workers");
+			}
+		}
+		this.secret = secret;
+		this.excludes = new HashSet(task.getOutputDirectories());
+		this.files = new HashMap();
+		this.manifests = new HashMap();
+		this.rootIds = new HashMap();
+		this.task = task;
+	}
+	
+	/**
+	 * Process the <code>jobs</code> on the workers. On return, every job has either a result
+	 * or an exception, unless the task fails on the first error and a job failed.
+	 * 
+	 * @param jobs the list of RemoteJobs.
+	 * 
+	 * @throws BuildException if interrupted.
+	 */
+	public void execute(List jobs) throws BuildException {
+		synchronized (this) {
+			this.outfiles = new HashSet();
+			for (Iterator it = jobs.iterator(); it.hasNext(); ) {
+				this.outfiles.add(((RemoteJob)it.next()).getOutfile().getAbsoluteFile());
+			}
+			this.queue = new LinkedList(jobs);
+			this.active = 0;
+			this.pending = jobs.size();
+			this.stopped = false;
+			this.workers = this.addresses.size();
+		}
+		for (Iterator it = this.addresses.iterator(); it.hasNext(); ) {
+			final InetSocketAddress address = (InetSocketAddress)it.next();
+			Thread thread = new Thread("antex coordinator " + address) {
+				public void run() {
+					executeWorker(address);
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		// wait for all jobs (or all workers to die), and for the active jobs if stopped
+		synchronized (this) {
+			try {
+				while (this.workers > 0 && (this.stopped ? this.active > 0 : this.pending > 0)) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new BuildException("Interrupted while waiting for workers", e);
+			}
+			this.stopped = true;
+			notifyAll();
+			for (Iterator it = jobs.iterator(); it.hasNext(); ) {
+				RemoteJob job = (RemoteJob)it.next();
+				if (!job.isDone()) {
+					job.setException(new BuildException("No worker available to process " + job.getInfile().getPath()));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Process jobs on the worker at <code>address</code> until the queue is empty or the
+	 * connection to the worker failed repeatedly.
+	 * 
+	 * @param address the worker address.
+	 */
+	private void executeWorker(InetSocketAddress address) {
+		try {
+			for (int failures = 0; failures < MAX_ATTEMPTS && hasJobs(); ) {
+				if (failures > 0) {
+					Thread.sleep(RETRY_DELAY * failures);
+					this.task.logVerbose("Reconnecting to worker " + address);
+				}
+				failures = executeConnection(address) ? 0 : failures + 1;
+			}
+		}
+		catch (InterruptedException e) {
+			// give up on the worker
+		}
+		finally {
+			synchronized (this) {
+				this.workers--;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Process jobs on a new connection to the worker at <code>address</code> until the queue
+	 * is empty or the connection fails. The job of a failed connection is put back into the
+	 * queue, while local errors (i.e. if the output file cannot be created) only fail the job.
+	 * 
+	 * @param address the worker address.
+	 * 
+	 * @return <code>true</code> if any job was processed on the connection.
+	 */
+	private boolean executeConnection(InetSocketAddress address) {
+		RemoteJob job = null;
+		boolean processed = false;
+		Set roots = new HashSet();
+		Socket socket = new Socket();
+		try {
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(getReadTimeout());
+			socket.connect(address, CONNECT_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			RemoteProtocol.authenticate(in, out, this.secret, false);
+			while ((job = nextJob()) != null) {
+				this.task.logVerbose("Processing " + job.getInfile().getName() + " on worker " + address);
+				try {
+					executeJob(job, roots, in, out);
+				}
+				catch (BuildException e) {
+					job.setException(e);
+				}
+				jobDone(job);
+				job = null;
+				processed = true;
+			}
+		}
+		catch (IOException e) {
+			this.task.logWarning("Worker " + address + " failed: " + ((e instanceof EOFException) ? "Connection closed" : e.getMessage()));
+			if (job != null) {
+				retryJob(job, e);
+			}
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+		return processed;
+	}
+	
+	/**
+	 * Return the read timeout for the connections to the workers, which must cover all tool
+	 * runs for a document on the worker.
+	 * 
+	 * @return the read timeout in milliseconds, or <code>0</code> if the tools have no timeout.
+	 */
+	private int getReadTimeout() {
+		long timeout = this.task.getTimeout();
+		return (timeout > 0) ? (int)Math.min(Integer.MAX_VALUE, timeout * MAX_RUNS + CONNECT_TIMEOUT) : 0;
+	}
+	
+	/**
+	 * Process the <code>job</code> using the worker connected to <code>in</code> and
+	 * <code>out</code>.
+	 * 
+	 * @param job the job.
+	 * @param roots the identifiers of the base directories whose manifest was already sent
+	 *              to the worker.
+	 * @param in the input stream from the worker.
+	 * @param out the output stream to the worker.
+	 * 
+	 * @throws BuildException in case of a local error, before anything is sent to the worker.
+	 * @throws IOException in case of a communication error.
+	 */
+	private void executeJob(RemoteJob job, Set roots, DataInputStream in, DataOutputStream out) throws BuildException, IOException {
+		// prepare everything that may fail locally
+		Map manifest = getManifest(job.getRoot());
+		File outfile = job.getOutfile();
+		SystemUtils.createLeadingDirectories(outfile);
+		File tmpfile = FileUtils.getFileUtils().createTempFile("tmp", outfile.getName(), outfile.getParentFile(), true);
+		
+		// send the job description
+		RemoteProtocol.writeString(out, this.task.getClass().getName());
+		out.writeInt(this.attributes.size());
+		for (Iterator it = this.attributes.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			RemoteProtocol.writeString(out, (String)entry.getKey());
+			RemoteProtocol.writeString(out, (String)entry.getValue());
+		}
+		out.writeInt(this.environment.length);
+		for (int i = 0; i < this.environment.length; ++i) {
+			RemoteProtocol.writeString(out, this.environment[i]);
+		}
+		
+		// send the manifest of the base directory unless already sent on this connection
+		Integer rootId = getRootId(job.getRoot());
+		boolean sendManifest = roots.add(rootId);
+		out.writeInt(rootId.intValue());
+		out.writeBoolean(sendManifest);
+		if (sendManifest) {
+			out.writeInt(manifest.size());
+			for (Iterator it = manifest.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry entry = (Map.Entry)it.next();
+				RemoteProtocol.writeString(out, (String)entry.getKey());
+				RemoteProtocol.writeString(out, (String)entry.getValue());
+			}
+		}
+		RemoteProtocol.writeString(out, Recorder.getPath(job.getInfile(), job.getRoot()));
+		RemoteProtocol.writeString(out, job.getOutfile().getName());
+		out.flush();
+		
+		// send the input files the worker does not have yet
+		for (int count = in.readInt(); count > 0; --count) {
+			String digest = RemoteProtocol.readString(in);
+			File file;
+			synchronized (this.files) {
+				file = (File)this.files.get(digest);
+			}
+			if (file == null) {
+				throw new IOException("Worker requested unknown file " + digest);
+			}
+			RemoteProtocol.writeFile(out, file);
+		}
+		out.flush();
+		
+		// receive the output file or the error
+		if (in.readBoolean()) {
+			String digest = RemoteProtocol.readString(in);
+			try {
+				RemoteProtocol.readFile(in, tmpfile, digest);
+			}
+			catch (IOException e) {
+				tmpfile.delete();
+				throw e;
+			}
+			job.setResult(tmpfile);
+		}
+		else {
+			String message = RemoteProtocol.readString(in);
+			String output = RemoteProtocol.readString(in);
+			job.setException((output.length() > 0) ? new ToolException(message, output) : new BuildException(message));
+		}
+	}
+	
+	/**
+	 * Return the identifier of the base directory <code>root</code> for the workers.
+	 * 
+	 * @param root the base directory.
+	 * 
+	 * @return the identifier.
+	 */
+	private Integer getRootId(File root) {
+		synchronized (this.rootIds) {
+			Integer rootId = (Integer)this.rootIds.get(root);
+			if (rootId == null) {
+				rootId = Integer.valueOf(this.rootIds.size());
+				this.rootIds.put(root, rootId);
+			}
+			return rootId;
+		}
+	}
+	
+	/**
+	 * Return the manifest (relative path to digest) of the files below <code>directory</code>.
+	 * The manifest is computed once per directory, so that output files written to the
+	 * directory while the jobs are processed do not change it.
+	 * 
+	 * @param directory the directory.
+	 * 
+	 * @return the manifest.
+	 * 
+	 * @throws BuildException if the directory cannot be read.
+	 */
+	private Map getManifest(File directory) throws BuildException {
+		synchronized (this.manifests) {
+			Map manifest = (Map)this.manifests.get(directory);
+			if (manifest == null) {
+				manifest = new LinkedHashMap();
+				collectFiles(directory, "", manifest);
+				this.manifests.put(directory, manifest);
+			}
+			return manifest;
+		}
+	}
+	
+	/**
+	 * Collect the files below <code>directory</code> into the <code>manifest</code>. Hidden
+	 * files and directories, the output directories of the task and the output files of the
+	 * jobs are skipped.
+	 * 
+	 * @param directory the directory.
+	 * @param prefix the relative path of <code>directory</code>.
+	 * @param manifest the manifest.
+	 * 
+	 * @throws BuildException if the directory or a file cannot be read.
+	 */
+	private void collectFiles(File directory, String prefix, Map manifest) throws BuildException {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			throw new BuildException("Failed to list directory " + directory.getPath());
+		}
+		for (int i = 0; i < children.length; ++i) {
+			File child = children[i];
+			if (child.getName().startsWith(".")) {
+				continue;
+			}
+			else if (child.isDirectory()) {
+				if (!this.excludes.contains(child.getAbsoluteFile())) {
+					collectFiles(child, prefix + child.getName() + "/", manifest);
+				}
+			}
+			else if (child.isFile() && !this.outfiles.contains(child.getAbsoluteFile())) {
+				String digest = SystemUtils.toHexString(SystemUtils.digestFile(child, false));
+				manifest.put(prefix + child.getName(), digest);
+				synchronized (this.files) {
+					this.files.put(digest, child);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check whether there are jobs left to process.
+	 * 
+	 * @return <code>true</code> if there are jobs left.
+	 */
+	private synchronized boolean hasJobs() {
+		return !this.stopped && this.pending > 0;
+	}
+	
+	/**
+	 * Return the next job to process, waiting for jobs of other workers that might be retried.
+	 * 
+	 * @return the next job, or <code>null</code> if all jobs are processed.
+	 */
+	private synchronized RemoteJob nextJob() {
+		while (this.queue.isEmpty() && this.pending > 0 && !this.stopped) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				return null;
+			}
+		}
+		if (this.stopped || this.queue.isEmpty()) {
+			return null;
+		}
+		this.active++;
+		return (RemoteJob)this.queue.removeFirst();
+	}
+	
+	/**
+	 * Mark the <code>job</code> as processed.
+	 * 
+	 * @param job the job.
+	 */
+	private synchronized void jobDone(RemoteJob job) {
+		this.active--;
+		this.pending--;
+		if (job.getException() != null && this.task.isFailonerror()) {
+			this.stopped = true;
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Put the <code>job</code> back into the queue after its worker failed, unless it
+	 * already failed too often.
+	 * 
+	 * @param job the job.
+	 * @param e the cause of the failure.
+	 */
+	private synchronized void retryJob(RemoteJob job, IOException e) {
+		job.incrementAttempts();
+		if (job.getAttempts() < MAX_ATTEMPTS) {
+			this.active--;
+			this.queue.addFirst(job);
+			notifyAll();
+		}
+		else {
+			job.setException(new BuildException("Giving up after " + MAX_ATTEMPTS + " attempts to process " + job.getInfile().getPath() + " on workers", e));
+			jobDone(job);
+		}
+	}
+	
+	/**
+	 * Return the attributes of the <code>task</code> to pass on to the workers, with the
+	 * properties replaced. Only the attributes permitted by {@link RemoteProtocol} are passed
+	 * on, the remaining attributes (i.e. files, cleanup or the workers) are handled locally.
+	 * 
+	 * @param task the task.
+	 * 
+	 * @return the map of attribute names to values.
+	 */
+	private static Map getAttributes(AbstractTask task) {
+		Map attributes = new LinkedHashMap();
+		Map attributeMap = task.getRuntimeConfigurableWrapper().getAttributeMap();
+		for (Iterator it = attributeMap.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			String name = ((String)entry.getKey()).toLowerCase();
+			if (!RemoteProtocol.isPermittedAttribute(name)) {
+				continue;
+			}
+			attributes.put(name, task.getProject().replaceProperties(String.valueOf(entry.getValue())));
+		}
+		return attributes;
+	}
+}
@@ -55,7 +55,7 @@ public class DvipsTask extends AbstractSimpleTask {
 		commandline.add("-o");
 		commandline.add(FileUtils.translatePath(outfile.getPath()));
 		commandline.add(FileUtils.translatePath(infile.getPath()));
-		launch(commandline, outfile.getParentFile());
+		launch(commandline, outfile.getParentFile(), infile);
 		
 		// verbose logging
 		logVerbose("Successfully converted DVI file " + infile.getName() + " to PostScript");
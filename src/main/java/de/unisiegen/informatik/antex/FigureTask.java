@@ -0,0 +1,267 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Figure Ant task, which compiles standalone LaTeX figures (i.e. TikZ or pgfplots pictures
+ * using the standalone document class) to PDF, so that documents can include the
+ * precompiled figures. Figures externalized using the TikZ <code>external</code> library
+ * are not supported, as they are compiled from the main document; such figures must be
+ * moved to standalone sources.
+ * 
+ * @author Benedikt Meurer
+ */
+public class FigureTask extends AbstractSimpleTask {
+	private static String[] AUXILIARY_FILE_EXTENSIONS = new String[] {
+		".aux", ".fls", ".log", ".out", ".pdf"
+	};
+	private static String[] OPTIONS = new String[] {
+		"-file-line-error", "-halt-on-error", "-interaction=errorstopmode", "-recorder"
+	};
+	private File cachedir;
+	private Map locks;
+	private boolean reproducible;
+	
+	/**
+	 * Initialize the figure Ant task.
+	 */
+	public void init() throws BuildException {
+		super.init();
+		this.cachedir = null;
+		this.locks = new HashMap();
+		this.reproducible = false;
+	}
+	
+	/**
+	 * Return the directory to cache the compiled figures.
+	 * 
+	 * @return the cache directory, or <code>null</code>.
+	 */
+	public File getCachedir() {
+		return this.cachedir;
+	}
+	
+	/**
+	 * Set the directory to cache the compiled figures. Compiled figures are stored there by
+	 * the digest of their source, the pdflatex options and the tool environment, together
+	 * with the inputs recorded by pdflatex (i.e. data files, styles and images, and the
+	 * format file of the TeX distribution). A cached figure is reused for figures with the
+	 * same source, even if the figures are used by different documents, as long as none of
+	 * its recorded inputs changed.
+	 * 
+	 * @param cachedir the cache directory, or <code>null</code>.
+	 */
+	public void setCachedir(File cachedir) {
+		this.cachedir = cachedir;
+	}
+	
+	/**
+	 * Check if reproducible mode is enabled.
+	 * 
+	 * @return <code>true</code> if reproducible mode is enabled, <code>false</code> if disabled.
+	 */
+	public boolean isReproducible() {
+		return this.reproducible;
+	}
+	
+	/**
+	 * Enable or disable reproducible mode. In reproducible mode, the PDF trailer ID of the
+	 * figures is set from the name and digest of their source (see the
+	 * <code>reproducible</code> attribute of the latex task).
+	 * 
+	 * @param reproducible <code>true</code> to enable reproducible mode, <code>false</code> to disable.
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+	
+	/**
+	 * Maps the LaTeX file <code>path</code> to a PDF path (if LaTeX actually).
+	 * 
+	 * @param path the input path.
+	 * 
+	 * @return the output path for the input <code>path</code>.
+	 */
+	protected String mapFileName(String path) {
+		String outPath = SystemUtils.translateFileExtension(path, "tex", "pdf");
+		if (outPath != null) {
+			return outPath;
+		}
+		return super.mapFileName(path);
+	}
+	
+	/**
+	 * Compile the figure <code>infile</code> to produce <code>outfile</code>, using the
+	 * cached figure if available.
+	 * 
+	 * @param infile the input file.
+	 * @param outfile the output file.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	protected void execute(File infile, File outfile) throws BuildException {
+		if (getCachedir() == null) {
+			compile(infile, outfile);
+			return;
+		}
+		
+		// figures with the same source and settings are processed only once
+		StringBuffer settings = new StringBuffer("pdflatex");
+		for (int i = 0; i < OPTIONS.length; ++i) {
+			settings.append(' ').append(OPTIONS[i]);
+		}
+		if (isReproducible()) {
+			settings.append(" reproducible");
+		}
+		String[] environment = getEnvironment();
+		for (int i = 0; environment != null && i < environment.length; ++i) {
+			settings.append('\n').append(environment[i]);
+		}
+		settings.append('\n').append(SystemUtils.toHexString(SystemUtils.digestFile(infile, false)));
+		String key = SystemUtils.toHexString(SystemUtils.digestString(settings.toString()));
+		synchronized (getLock(key)) {
+			FileUtils fileUtils = FileUtils.getFileUtils();
+			File cachefile = new File(getCachedir(), key + ".pdf");
+			File statefile = new File(getCachedir(), key + ".inputs");
+			try {
+				Properties state = cachefile.isFile() ? SystemUtils.loadProperties(statefile) : null;
+				String changedInput = (state != null) ? Recorder.findChange(state, infile.getParentFile(), null) : null;
+				if (state != null && changedInput == null) {
+					logVerbose("Using cached figure for " + infile.getName());
+					fileUtils.copyFile(cachefile, outfile);
+				}
+				else {
+					if (changedInput != null) {
+						logVerbose("Input " + changedInput + " of cached figure for " + infile.getName() + " changed");
+					}
+					List inputs = compile(infile, outfile);
+					
+					// store the figure and its inputs to the cache
+					if (!getCachedir().mkdirs() && !getCachedir().isDirectory()) {
+						throw new BuildException("Failed to create directory " + getCachedir().getPath());
+					}
+					if (inputs != null) {
+						File tmpfile = fileUtils.createTempFile("tmp", cachefile.getName(), getCachedir(), true);
+						fileUtils.copyFile(outfile, tmpfile);
+						SystemUtils.renameFile(tmpfile, cachefile);
+						tmpfile = fileUtils.createTempFile("tmp", statefile.getName(), getCachedir(), true);
+						SystemUtils.storeProperties(tmpfile, Recorder.computeState(inputs, infile.getParentFile()));
+						SystemUtils.renameFile(tmpfile, statefile);
+					}
+				}
+			}
+			catch (IOException e) {
+				throw new BuildException("Failed to copy cached figure " + cachefile.getPath(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Run pdflatex on the figure <code>infile</code> to produce <code>outfile</code>.
+	 * 
+	 * @param infile the input file.
+	 * @param outfile the output file.
+	 * 
+	 * @return the list of input files recorded by pdflatex, or <code>null</code> if unknown.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private List compile(File infile, File outfile) throws BuildException {
+		// verbose logging
+		logVerbose("Compiling figure " + infile.getName());
+		
+		// pdflatex writes <jobName>.pdf next to the outfile
+		File outputDirectory = outfile.getParentFile();
+		String jobName = outfile.getName();
+		List inputs;
+		try {
+			// prepare and run the pdflatex command (again if references changed)
+			for (int tries = 0; tries < 3; ++tries) {
+				LinkedList commandline = new LinkedList();
+				commandline.add(SystemUtils.executableName("pdflatex"));
+				for (int i = 0; i < OPTIONS.length; ++i) {
+					commandline.add(OPTIONS[i]);
+				}
+				commandline.add("-output-directory");
+				commandline.add(outputDirectory.getAbsolutePath());
+				commandline.add("-jobname=" + jobName);
+				commandline.add(isReproducible() ? SystemUtils.pdfTrailerId(infile) + "\\input{" + infile.getName() + "}" : infile.getName());
+				launch(commandline, infile.getParentFile(), infile);
+				if (!checkRerun(new File(outputDirectory, jobName + ".log"))) {
+					break;
+				}
+			}
+			inputs = Recorder.readInputs(new File(outputDirectory, jobName + ".fls"));
+			SystemUtils.renameFile(new File(outputDirectory, jobName + ".pdf"), outfile);
+		}
+		finally {
+			// remove the auxiliary files of the figure
+			for (int i = 0; i < AUXILIARY_FILE_EXTENSIONS.length; ++i) {
+				new File(outputDirectory, jobName + AUXILIARY_FILE_EXTENSIONS[i]).delete();
+			}
+		}
+		
+		// verbose logging
+		logVerbose("Successfully compiled figure " + infile.getName());
+		return inputs;
+	}
+	
+	/**
+	 * Check whether the <code>logFile</code> indicates that pdflatex must be run again.
+	 * 
+	 * @param logFile the log file.
+	 * 
+	 * @return <code>true</code> if pdflatex must be run again.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private boolean checkRerun(File logFile) throws BuildException {
+		try {
+			String line;
+			Pattern pattern = Pattern.compile("Rerun (LaTeX|to get cross-references right)");
+			BufferedReader reader = new BufferedReader(new FileReader(logFile));
+			try {
+				while ((line = reader.readLine()) != null) {
+					if (pattern.matcher(line).find()) {
+						return true;
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			return false;
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to inspect log file " + logFile.getName(), e);
+		}
+	}
+	
+	/**
+	 * Return the lock object for the figure with the given <code>key</code>.
+	 * 
+	 * @param key the digest of the figure source.
+	 * 
+	 * @return the lock object.
+	 */
+	private synchronized Object getLock(String key) {
+		Object lock = this.locks.get(key);
+		if (lock == null) {
+			lock = new Object();
+			this.locks.put(key, lock);
+		}
+		return lock;
+	}
+}
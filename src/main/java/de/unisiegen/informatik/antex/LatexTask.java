@@ -3,15 +3,23 @@ package de.unisiegen.informatik.antex;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.Delete;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.FileUtils;
 
 /**
  * Latex Ant task.
@@ -26,11 +34,15 @@ public class LatexTask extends AbstractTask {
 		"*.hst", "*.ver",
 		"*.ind", "*.idx", "*.lor", "*.los", "*.tmp", "*.lg", "*.4tc",
 		"*.xal", "*.xgl", "*.4ct", "*.tpt", "*.xref", "*.idv", "WARNING*",
-		"*.lol"
+		"*.lol", "*.fls"
 	};
  	private boolean cleanup;
  	private List deletes;
+	private boolean draftmode;
+	private boolean incremental;
 	private boolean pdf;
+	private boolean reproducible;
+	private File scratchdir;
 	
 	/**
 	 * Initialize the latex task.
@@ -39,7 +51,11 @@ public class LatexTask extends AbstractTask {
 		super.init();
 		this.cleanup = false;
 		this.deletes = new LinkedList();
+		this.draftmode = false;
+		this.incremental = false;
 		this.pdf = true;
+		this.reproducible = false;
+		this.scratchdir = null;
 	}
 	
 	/**
@@ -60,6 +76,50 @@ public class LatexTask extends AbstractTask {
 		this.cleanup = cleanup;
 	}
 	
+	/**
+	 * Check if draft mode is enabled.
+	 * 
+	 * @return <code>true</code> if draft mode is enabled, <code>false</code> if disabled.
+	 */
+	public boolean isDraftmode() {
+		return this.draftmode;
+	}
+	
+	/**
+	 * Enable or disable draft mode. In draft mode, the intermediate pdflatex runs only update
+	 * the auxiliary files, and the PDF file is generated by one final run.
+	 * 
+	 * @param draftmode <code>true</code> to enable draft mode, <code>false</code> to disable.
+	 */
+	public void setDraftmode(boolean draftmode) {
+		this.draftmode = draftmode;
+	}
+	
+	/**
+	 * Check if incremental mode is enabled.
+	 * 
+	 * @return <code>true</code> if incremental mode is enabled, <code>false</code> if disabled.
+	 */
+	public boolean isIncremental() {
+		return this.incremental;
+	}
+	
+	/**
+	 * Enable or disable incremental mode. In incremental mode, the intermediate runs for a
+	 * LaTeX file only process the <code>\include</code>d chapters whose sources changed since
+	 * the last build (using <code>\includeonly</code>), and the whole document is processed
+	 * again only if the page numbers or references of these chapters changed. If any other
+	 * input recorded by the last build (i.e. <code>\input</code> files, images, bibliographies
+	 * or packages) changed, the whole document is processed. This requires the auxiliary
+	 * files of the previous build, so it should not be combined with cleanup, and it is not
+	 * supported with workers.
+	 * 
+	 * @param incremental <code>true</code> to enable incremental mode, <code>false</code> to disable.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	
 	/**
 	 * Check if PDF mode is enabled.
 	 * 
@@ -78,6 +138,65 @@ public class LatexTask extends AbstractTask {
 		this.pdf = pdf;
 	}
 	
+	/**
+	 * Check if reproducible mode is enabled.
+	 * 
+	 * @return <code>true</code> if reproducible mode is enabled, <code>false</code> if disabled.
+	 */
+	public boolean isReproducible() {
+		return this.reproducible;
+	}
+	
+	/**
+	 * Enable or disable reproducible mode. pdfTeX derives the PDF trailer ID from the time
+	 * and the path of the output file, so a document processed in different directories
+	 * (i.e. locally and on antex workers) yields different PDF files. In reproducible mode,
+	 * the trailer ID is set using <code>\pdftrailerid</code> from the name and digest of
+	 * the LaTeX file instead. For byte-identical output, also set the
+	 * <code>SOURCE_DATE_EPOCH</code> and <code>FORCE_SOURCE_DATE</code> environment
+	 * variables to fix the dates.
+	 * 
+	 * @param reproducible <code>true</code> to enable reproducible mode, <code>false</code> to disable.
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+	
+	/**
+	 * Return the directory for the private scratch directories of the LaTeX files.
+	 * 
+	 * @return the scratch directory, or <code>null</code>.
+	 */
+	public File getScratchdir() {
+		return this.scratchdir;
+	}
+	
+	/**
+	 * Set the directory for the private scratch directories of the LaTeX files (i.e. on a
+	 * tmpfs). If set, LaTeX writes the auxiliary and output files for each LaTeX file to its
+	 * own subdirectory of the scratch directory, which is kept for later builds, and only
+	 * the final output file is copied to the destdir. Not supported with workers.
+	 * 
+	 * @param scratchdir the scratch directory, or <code>null</code>.
+	 */
+	public void setScratchdir(File scratchdir) {
+		this.scratchdir = scratchdir;
+	}
+	
+	/**
+	 * Return the directories for the output files of this task, including the scratch
+	 * directory.
+	 * 
+	 * @return the list of absolute directories.
+	 */
+	protected List getOutputDirectories() {
+		List directories = super.getOutputDirectories();
+		if (getScratchdir() != null) {
+			directories.add(getScratchdir().getAbsoluteFile());
+		}
+		return directories;
+	}
+	
 	/**
 	 * Ant callback to create nested <code>&lt;delete&gt;</code>s.
 	 * 
@@ -112,14 +231,182 @@ public class LatexTask extends AbstractTask {
 			}
 			baseNames[i] = fileName.substring(0, indexOfDotTex);
 		}
+		if (getWorkers() != null && (isIncremental() || getScratchdir() != null)) {
+			throw new BuildException("The incremental and scratchdir attributes are not supported with workers");
+		}
+		
+		// skip the files processed successfully by the previous run when keeping going (unless
+		// any input recorded by that run changed, which is only known for local runs)
+		File[] allFiles = files;
+		Properties journal = null;
+		if (!isFailonerror() && getWorkers() == null) {
+			journal = SystemUtils.loadProperties(getJournalFile());
+			if (journal == null) {
+				journal = new Properties();
+			}
+			List pendingFiles = new LinkedList();
+			List pendingBaseNames = new LinkedList();
+			for (int i = 0; i < files.length; ++i) {
+				String digest = SystemUtils.toHexString(SystemUtils.digestFile(files[i], false));
+				File outfile = new File(getDestdir(), baseNames[i] + (isPdf() ? ".pdf" : ".dvi"));
+				String changedInput = null;
+				if (outfile.isFile() && digest.equals(journal.getProperty(files[i].getPath()))
+						&& (changedInput = findChangedInput(files[i], baseNames[i], null)) == null) {
+					logVerbose("Skipping LaTeX file " + files[i].getName() + " processed by the previous run");
+				}
+				else {
+					if (changedInput != null) {
+						logVerbose("Inputs of LaTeX file " + files[i].getName() + " changed since the previous run (" + changedInput + ")");
+					}
+					pendingFiles.add(files[i]);
+					pendingBaseNames.add(baseNames[i]);
+				}
+			}
+			files = (File[])pendingFiles.toArray(new File[0]);
+			baseNames = (String[])pendingBaseNames.toArray(new String[0]);
+		}
+		
+		// figure out the output files
+		File[] outfiles = new File[files.length];
+		boolean[] outfileStati = new boolean[files.length];
+		for (int i = 0; i < files.length; ++i) {
+			outfiles[i] = new File(getDestdir(), baseNames[i] + (isPdf() ? ".pdf" : ".dvi"));
+			outfileStati[i] = outfiles[i].isFile();
+		}
+		
+		// remember the existing output files if unchanged output files should be kept (the files
+		// are left in place, so nothing is lost if the build is interrupted)
+		byte[][] outfileDigests = new byte[files.length][];
+		long[] outfileLengths = new long[files.length];
+		long[] outfileTimes = new long[files.length];
+		FileUtils fileUtils = FileUtils.getFileUtils();
+		if (isSkipUnchanged() && getScratchdir() == null && getWorkers() == null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (outfileStati[i]) {
+					outfileDigests[i] = SystemUtils.digestFile(outfiles[i], isPdf());
+					outfileLengths[i] = outfiles[i].length();
+					outfileTimes[i] = outfiles[i].lastModified();
+				}
+			}
+		}
+		Map failures = new LinkedHashMap();
+		if (getWorkers() != null) {
+			executeRemote(files, outfiles, failures);
+			
+			// run the deletes (the temporary files stay on the workers, but the destdir may
+			// still contain temporary files of earlier local builds)
+			if (failures.isEmpty()) {
+				List deletes = new LinkedList(this.deletes);
+				if (isCleanup()) {
+					Delete delete = (Delete)getProject().createTask("delete");
+					delete.addFileset(createTemporaryFileSet(getDestdir()));
+					delete.setVerbose(isVerbose());
+					deletes.add(delete);
+				}
+				for (Iterator it = deletes.iterator(); it.hasNext(); ) {
+					Delete delete = (Delete)it.next();
+					delete.execute();
+				}
+			}
+		}
+		else {
+			executeLatex(files, baseNames, outfileStati, failures);
+			
+			for (int i = 0; i < files.length; ++i) {
+				File outputFile = new File(getOutputDirectory(files[i], baseNames[i]), outfiles[i].getName());
+				if (failures.containsKey(files[i])) {
+					// remove the (partial) output file of the failed LaTeX file
+					if (outputFile.exists() && !outputFile.delete()) {
+						logWarning("Failed to delete " + outputFile.getPath());
+					}
+				}
+				else if (getScratchdir() != null && outputFile.isFile() && !fileUtils.isUpToDate(outputFile, outfiles[i])) {
+					// copy the new output file from the scratch directory to the destdir
+					File tmpfile = fileUtils.createTempFile("tmp", outfiles[i].getName(), getDestdir(), true);
+					try {
+						fileUtils.copyFile(outputFile, tmpfile);
+					}
+					catch (IOException e) {
+						throw new BuildException("Failed to copy " + outputFile.getPath() + " to " + tmpfile.getPath(), e);
+					}
+					publishFile(tmpfile, outfiles[i]);
+				}
+				else if (outfileDigests[i] != null && outputFile.isFile() && outputFile.length() == outfileLengths[i]
+						&& MessageDigest.isEqual(SystemUtils.digestFile(outputFile, isPdf()), outfileDigests[i])) {
+					// keep the modification time of the output file if its contents did not change
+					logVerbose("Keeping unchanged output file " + outfiles[i].getName());
+					if (!outputFile.setLastModified(outfileTimes[i])) {
+						logWarning("Failed to set modification time of " + outputFile.getPath());
+					}
+				}
+			}
+		}
+		
+		// remember the successfully processed files if there were failures
+		if (journal != null) {
+			for (int i = 0; i < allFiles.length; ++i) {
+				if (failures.isEmpty() || failures.containsKey(allFiles[i])) {
+					journal.remove(allFiles[i].getPath());
+				}
+				else {
+					journal.setProperty(allFiles[i].getPath(), SystemUtils.toHexString(SystemUtils.digestFile(allFiles[i], false)));
+				}
+			}
+			if (!journal.isEmpty()) {
+				SystemUtils.storeProperties(getJournalFile(), journal);
+			}
+			else if (getJournalFile().exists() && !getJournalFile().delete()) {
+				logWarning("Failed to delete " + getJournalFile().getPath());
+			}
+		}
+		reportFailures(failures, allFiles.length);
+	}
+	
+	/**
+	 * Execute the LaTeX interpreter on the specified <code>files</code> until all references
+	 * are resolved, and run the deletes afterwards.
+	 * 
+	 * @param files the LaTeX files.
+	 * @param baseNames the base names of the LaTeX files (w/o the extension).
+	 * @param outfileStati whether the output files of the previous build exist.
+	 * @param failures the map to record the failed LaTeX files (if not failing on error).
+	 * 
+	 * @throws BuildException if an error is reported by LaTeX.
+	 */
+	private void executeLatex(File[] files, String[] baseNames, boolean[] outfileStati, Map failures) throws BuildException {
+		// intermediate runs only update the auxiliary files in draft mode
+		boolean draft = isDraftmode() && isPdf();
+		
+		// try to process the LaTeX files incrementally first
+		boolean[] fileStati = new boolean[files.length];
+		boolean[] incrementalStati = new boolean[files.length];
+		if (isIncremental()) {
+			for (int i = 0; i < files.length; ++i) {
+				try {
+					incrementalStati[i] = executeIncremental(files[i], baseNames[i], draft, outfileStati[i]);
+					fileStati[i] = incrementalStati[i];
+				}
+				catch (BuildException e) {
+					recordFailure(failures, files[i], e);
+					fileStati[i] = true;
+				}
+			}
+		}
 		
 		// all LaTeX files need atleast two runs because of toc, etc.
 		for (int i = 0; i < files.length; ++i) {
-			executeLatex(files[i], baseNames[i]);
+			if (!fileStati[i]) {
+				try {
+					executeLatex(files[i], baseNames[i], draft, null);
+				}
+				catch (BuildException e) {
+					recordFailure(failures, files[i], e);
+					fileStati[i] = true;
+				}
+			}
 		}
 
 		// execute LaTeX until all files report success
-		boolean[] fileStati = new boolean[files.length];
 		boolean finished = false;
 		for (int tries = 0; !finished; ++tries) {
 			// process the LaTeX files
@@ -131,18 +418,60 @@ public class LatexTask extends AbstractTask {
 						break;
 					}
 					
-					if (!executeLatex(files[i], baseNames[i])) {
-						finished = false;
+					try {
+						if (!executeLatex(files[i], baseNames[i], draft, null)) {
+							finished = false;
+						}
+						else {
+							fileStati[i] = true;
+						}
 					}
-					else {
+					catch (BuildException e) {
+						recordFailure(failures, files[i], e);
 						fileStati[i] = true;
 					}
 				}
 			}
 		}
 		
+		// generate the actual output files once the auxiliary files are stable (the final run
+		// may still ask for another run, i.e. if the page numbers changed after all)
+		if (draft) {
+			for (int i = 0; i < files.length; ++i) {
+				if (!incrementalStati[i] && !failures.containsKey(files[i])) {
+					try {
+						for (int tries = 0; !executeLatex(files[i], baseNames[i], false, null); ++tries) {
+							if (tries == 4) {
+								logError("Giving up after 4 attempts to fix unresolved references in LaTeX file " + files[i].getName());
+								finished = false;
+								break;
+							}
+						}
+					}
+					catch (BuildException e) {
+						recordFailure(failures, files[i], e);
+					}
+				}
+			}
+		}
+		
+		// remember the inputs (and chapter sources) for the next incremental or keep going build
+		if (isIncremental() || !isFailonerror()) {
+			for (int i = 0; i < files.length; ++i) {
+				if (!failures.containsKey(files[i])) {
+					storeInputState(files[i], baseNames[i]);
+					if (isIncremental()) {
+						SystemUtils.storeProperties(getStateFile(files[i], baseNames[i]), computeChapterState(files[i]));
+					}
+				}
+			}
+		}
+		
 		// check if we finished successfully
-		if (finished) {
+		if (!failures.isEmpty()) {
+			logWarning("Skipping deletes as there were failures");
+		}
+		else if (finished) {
 			// add default deletes if cleanup is specified
 			List deletes = new LinkedList(this.deletes);
 			if (isCleanup()) {
@@ -151,12 +480,14 @@ public class LatexTask extends AbstractTask {
 
 				// add the default patterns for each LaTeX file
 				Delete delete = (Delete)getProject().createTask("delete");
-				FileSet fileSet = new FileSet();
-				fileSet.setDir(getDestdir());
-				for (int j = 0; j < TEMPORARY_FILE_PATTERNS.length; ++j) {
-					fileSet.createInclude().setName(TEMPORARY_FILE_PATTERNS[j]);
+				if (getScratchdir() == null) {
+					delete.addFileset(createTemporaryFileSet(getDestdir()));
+				}
+				else {
+					for (int i = 0; i < files.length; ++i) {
+						delete.addFileset(createTemporaryFileSet(getOutputDirectory(files[i], baseNames[i])));
+					}
 				}
-				delete.addFileset(fileSet);
 				delete.setVerbose(isVerbose());
 				deletes.add(delete);
 			}
@@ -177,13 +508,16 @@ public class LatexTask extends AbstractTask {
 	 * 
 	 * @param file the LaTeX file.
 	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * @param draft <code>true</code> to only update the auxiliary files.
+	 * @param includeOnly the comma separated list of chapters to process, or <code>null</code>
+	 *                    to process the whole document.
 	 * 
 	 * @return <code>false</code> if LaTeX must be run again because of unresolved
 	 *         references.
 	 * 
 	 * @throws BuildException if an error is reported by LaTeX.
 	 */
-	private boolean executeLatex(File file, String baseName) throws BuildException {
+	private boolean executeLatex(File file, String baseName, boolean draft, String includeOnly) throws BuildException {
 		// figure out the base directory
 		File baseDirectory = file.getParentFile();
 		
@@ -193,13 +527,28 @@ public class LatexTask extends AbstractTask {
 		// prepare and run the latex command
 		LinkedList commandline = new LinkedList();
 		commandline.add(SystemUtils.executableName(isPdf() ? "pdflatex" : "latex"));
+		if (draft) {
+			commandline.add("-draftmode");
+		}
 		commandline.add("-file-line-error");
 		commandline.add("-halt-on-error");
 		commandline.add("-interaction=errorstopmode");
+		if (isIncremental() || !isFailonerror()) {
+			// record the inputs for the next incremental or keep going build
+			commandline.add("-recorder");
+		}
 		commandline.add("-output-directory");
-		commandline.add(getDestdir().getAbsolutePath());
-		commandline.add(file.getName());
-		launch(commandline, baseDirectory);
+		commandline.add(getOutputDirectory(file, baseName).getAbsolutePath());
+		if (includeOnly != null || isReproducible()) {
+			commandline.add("-jobname=" + baseName);
+			commandline.add((isReproducible() ? SystemUtils.pdfTrailerId(file) : "")
+					+ ((includeOnly != null) ? "\\includeonly{" + includeOnly + "}" : "")
+					+ "\\input{" + file.getName() + "}");
+		}
+		else {
+			commandline.add(file.getName());
+		}
+		launch(commandline, baseDirectory, file);
 		
 		// verbose logging
 		logVerbose("Checking for unresolved references in LaTeX file " + file.getName());
@@ -210,7 +559,7 @@ public class LatexTask extends AbstractTask {
 		try {
 			String line;
 			Pattern pattern = Pattern.compile("(Rerun (LaTeX|to get cross-references right)|Package glosstex Warning: Term |There were undefined references|Package natbib Warning: Citation\\(s\\) may have changed)");
-			BufferedReader reader = new BufferedReader(new FileReader(new File(getDestdir(), logFileName)));
+			BufferedReader reader = new BufferedReader(new FileReader(new File(getOutputDirectory(file, baseName), logFileName)));
 			while ((line = reader.readLine()) != null) {
 				Matcher matcher = pattern.matcher(line);
 				if (matcher.find()) {
@@ -234,4 +583,244 @@ public class LatexTask extends AbstractTask {
 		
 		return !logFileIndicatesRerun;
 	}
+	
+	/**
+	 * Process the LaTeX <code>file</code> incrementally, using the auxiliary files of the
+	 * previous build for the chapters whose sources did not change.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * @param draft <code>true</code> to only update the auxiliary files in intermediate runs.
+	 * @param outfileStatus whether the output file of the previous build exists.
+	 * 
+	 * @return <code>true</code> if the output file is up to date, <code>false</code> if the
+	 *         whole document must be processed.
+	 * 
+	 * @throws BuildException if an error is reported by LaTeX.
+	 */
+	private boolean executeIncremental(File file, String baseName, boolean draft, boolean outfileStatus) throws BuildException {
+		// load (and invalidate) the state of the previous build
+		File stateFile = getStateFile(file, baseName);
+		Properties previousState = SystemUtils.loadProperties(stateFile);
+		if (stateFile.exists() && !stateFile.delete()) {
+			throw new BuildException("Failed to delete " + stateFile.getPath());
+		}
+		if (previousState == null || !outfileStatus) {
+			return false;
+		}
+		
+		// determine the chapters that changed since the previous build
+		Properties state = computeChapterState(file);
+		if (!state.keySet().equals(previousState.keySet())
+				|| !state.getProperty(file.getName()).equals(previousState.getProperty(file.getName()))) {
+			logVerbose("Document structure of LaTeX file " + file.getName() + " changed");
+			return false;
+		}
+		
+		// all other inputs of the previous build must be unchanged
+		Set chapterSources = new HashSet();
+		for (Iterator it = state.keySet().iterator(); it.hasNext(); ) {
+			String chapter = (String)it.next();
+			chapterSources.add(chapter);
+			chapterSources.add(chapter + ".tex");
+		}
+		String changedInput = findChangedInput(file, baseName, chapterSources);
+		if (changedInput != null) {
+			logVerbose("Input " + changedInput + " of LaTeX file " + file.getName() + " changed");
+			return false;
+		}
+		StringBuffer includeOnly = new StringBuffer();
+		Map auxDigests = new LinkedHashMap();
+		for (Iterator it = state.keySet().iterator(); it.hasNext(); ) {
+			String chapter = (String)it.next();
+			if (chapter.equals(file.getName())) {
+				continue;
+			}
+			File auxFile = new File(getOutputDirectory(file, baseName), chapter + ".aux");
+			if (!auxFile.isFile()) {
+				logVerbose("Missing auxiliary file " + auxFile.getName() + " for LaTeX file " + file.getName());
+				return false;
+			}
+			if (!state.getProperty(chapter).equals(previousState.getProperty(chapter))) {
+				includeOnly.append((includeOnly.length() > 0) ? "," : "").append(chapter);
+				auxDigests.put(auxFile, SystemUtils.digestFile(auxFile, false));
+			}
+		}
+		if (auxDigests.isEmpty()) {
+			logVerbose("No chapters changed in LaTeX file " + file.getName());
+			return true;
+		}
+		
+		// process only the changed chapters until their references are resolved
+		logVerbose("Processing changed chapters " + includeOnly + " of LaTeX file " + file.getName());
+		for (int tries = 0; tries < 5; ++tries) {
+			if (executeLatex(file, baseName, draft, includeOnly.toString())) {
+				break;
+			}
+		}
+		
+		// the whole document must be processed again if page numbers or references changed
+		for (Iterator it = auxDigests.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			File auxFile = (File)entry.getKey();
+			if (!SystemUtils.contentEquals(auxFile, (byte[])entry.getValue())) {
+				logVerbose("Auxiliary file " + auxFile.getName() + " changed, processing whole LaTeX file " + file.getName());
+				return false;
+			}
+		}
+		
+		// generate the output file for the whole document (and process it completely if this
+		// final run asks for another run)
+		return executeLatex(file, baseName, false, null);
+	}
+	
+	/**
+	 * Return the file to remember the successfully processed LaTeX files of a run with failures.
+	 * 
+	 * @return the journal file.
+	 */
+	private File getJournalFile() {
+		return new File(getDestdir(), ".antex-journal");
+	}
+	
+	/**
+	 * Return the file to store the state for incremental builds of <code>file</code>.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * 
+	 * @return the state file.
+	 */
+	private File getStateFile(File file, String baseName) {
+		return new File(getOutputDirectory(file, baseName), baseName + ".antex");
+	}
+	
+	/**
+	 * Return the file to store the state of the inputs recorded by the last build of
+	 * <code>file</code>.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * 
+	 * @return the input state file.
+	 */
+	private File getInputStateFile(File file, String baseName) {
+		return new File(getOutputDirectory(file, baseName), baseName + ".antex-inputs");
+	}
+	
+	/**
+	 * Store the state of the inputs recorded by the last LaTeX run for <code>file</code>.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private void storeInputState(File file, String baseName) throws BuildException {
+		File stateFile = getInputStateFile(file, baseName);
+		List inputs = Recorder.readInputs(new File(getOutputDirectory(file, baseName), baseName + ".fls"));
+		if (inputs != null) {
+			SystemUtils.storeProperties(stateFile, Recorder.computeState(inputs, file.getParentFile()));
+		}
+		else if (stateFile.exists() && !stateFile.delete()) {
+			throw new BuildException("Failed to delete " + stateFile.getPath());
+		}
+	}
+	
+	/**
+	 * Find an input recorded by the last build of <code>file</code> that changed since.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * @param ignore the set of paths (relative to the directory of <code>file</code>) to
+	 *               ignore, or <code>null</code>.
+	 * 
+	 * @return the path of the changed input, or <code>null</code> if no input changed.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private String findChangedInput(File file, String baseName, Set ignore) throws BuildException {
+		File stateFile = getInputStateFile(file, baseName);
+		Properties state = SystemUtils.loadProperties(stateFile);
+		if (state == null) {
+			return stateFile.getName();
+		}
+		return Recorder.findChange(state, file.getParentFile(), ignore);
+	}
+	
+	/**
+	 * Return the directory where LaTeX writes the auxiliary and output files for <code>file</code>,
+	 * which is either the destdir or the private scratch directory for <code>file</code>.
+	 * 
+	 * @param file the LaTeX file.
+	 * @param baseName the base name of the LaTeX file (w/o the extension).
+	 * 
+	 * @return the output directory.
+	 * 
+	 * @throws BuildException if the scratch directory cannot be created.
+	 */
+	private File getOutputDirectory(File file, String baseName) throws BuildException {
+		if (getScratchdir() == null) {
+			return getDestdir();
+		}
+		String key = file.getAbsolutePath() + File.pathSeparator + getDestdir().getAbsolutePath();
+		File directory = new File(getScratchdir(), baseName + "-" + Integer.toHexString(key.hashCode()));
+		if (!directory.mkdirs() && !directory.isDirectory()) {
+			throw new BuildException("Failed to create directory " + directory.getPath());
+		}
+		return directory;
+	}
+	
+	/**
+	 * Create a FileSet matching the temporary LaTeX files in <code>directory</code>.
+	 * 
+	 * @param directory the directory.
+	 * 
+	 * @return the FileSet for the temporary files.
+	 */
+	private FileSet createTemporaryFileSet(File directory) {
+		FileSet fileSet = new FileSet();
+		fileSet.setDir(directory);
+		for (int j = 0; j < TEMPORARY_FILE_PATTERNS.length; ++j) {
+			fileSet.createInclude().setName(TEMPORARY_FILE_PATTERNS[j]);
+		}
+		return fileSet;
+	}
+	
+	/**
+	 * Compute the digests of the LaTeX <code>file</code> and all its <code>\include</code>d
+	 * chapters.
+	 * 
+	 * @param file the LaTeX file.
+	 * 
+	 * @return the hex digests, keyed by chapter name (and the file name for <code>file</code>).
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private Properties computeChapterState(File file) throws BuildException {
+		Properties state = new Properties();
+		state.setProperty(file.getName(), SystemUtils.toHexString(SystemUtils.digestFile(file, false)));
+		try {
+			String line;
+			Pattern pattern = Pattern.compile("\\\\include\\s*\\{([^}]+)\\}");
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			while ((line = reader.readLine()) != null) {
+				Matcher matcher = pattern.matcher(line.replaceFirst("(^|[^\\\\])%.*", "$1"));
+				while (matcher.find()) {
+					String chapter = matcher.group(1).trim();
+					File source = new File(file.getParentFile(), chapter + ".tex");
+					if (!source.isFile()) {
+						source = new File(file.getParentFile(), chapter);
+					}
+					String digest = source.isFile() ? SystemUtils.toHexString(SystemUtils.digestFile(source, false)) : "";
+					state.setProperty(chapter, digest);
+				}
+			}
+			reader.close();
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to inspect LaTeX file " + file.getName(), e);
+		}
+		return state;
+	}
 }
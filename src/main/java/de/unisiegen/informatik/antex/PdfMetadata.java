@@ -0,0 +1,620 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Locates the metadata values of PDF files that differ between otherwise identical runs,
+ * i.e. the <code>/ID</code> of the trailer and the <code>/CreationDate</code> and
+ * <code>/ModDate</code> of the document information dictionary. Only the trailer (or the
+ * cross-reference stream dictionary) referenced by <code>startxref</code> and the
+ * information dictionary referenced by the trailer are examined, so the contents of
+ * streams are never mistaken for metadata. Files that cannot be understood (i.e. with
+ * incremental updates or a compressed information dictionary) have no metadata values.
+ * 
+ * @author Benedikt Meurer
+ */
+public class PdfMetadata {
+	/**
+	 * The maximum size of the cross-reference section and trailer that is examined.
+	 */
+	private static final long MAX_XREF_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * The maximum size of the document information dictionary that is examined.
+	 */
+	private static final int MAX_INFO_SIZE = 64 * 1024;
+	
+	/**
+	 * Find the byte ranges of the metadata values in the PDF <code>file</code>.
+	 * 
+	 * @param file the PDF file.
+	 * 
+	 * @return the sorted byte ranges, as pairs of start (inclusive) and end (exclusive) offsets.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public static long[] findRanges(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			// locate the last cross-reference section
+			long length = in.length();
+			byte[] bytes = read(in, Math.max(0, length - 1024), length);
+			int pos = lastIndexOf(bytes, "startxref");
+			if (pos < 0) {
+				return new long[0];
+			}
+			pos = skipWhitespace(bytes, pos + 9);
+			long offset = parseInteger(bytes, pos, skipToken(bytes, pos));
+			if (offset < 0 || offset >= length || length - offset > MAX_XREF_SIZE) {
+				return new long[0];
+			}
+			
+			// parse the cross-reference section and the trailer
+			bytes = read(in, offset, length);
+			Map objects = new HashMap();
+			Map trailer = new HashMap();
+			if (!parseXref(bytes, objects, trailer)) {
+				return new long[0];
+			}
+			long[] ranges = new long[6];
+			int count = 0;
+			int[] id = (int[])trailer.get("ID");
+			if (id != null) {
+				ranges[count++] = offset + id[0];
+				ranges[count++] = offset + id[1];
+			}
+			
+			// parse the document information dictionary
+			int[] info = (int[])trailer.get("Info");
+			Long infoOffset = null;
+			if (info != null) {
+				infoOffset = (Long)objects.get(Long.valueOf(parseInteger(bytes, info[0], skipToken(bytes, info[0]))));
+			}
+			if (infoOffset != null && infoOffset.longValue() < length) {
+				long start = infoOffset.longValue();
+				bytes = read(in, start, Math.min(length, start + MAX_INFO_SIZE));
+				pos = skipObjectHeader(bytes, skipWhitespace(bytes, 0));
+				Map entries = new HashMap();
+				if (pos >= 0 && parseDictionary(bytes, skipWhitespace(bytes, pos), entries) >= 0) {
+					String[] keys = new String[] { "CreationDate", "ModDate" };
+					for (int i = 0; i < keys.length; ++i) {
+						int[] value = (int[])entries.get(keys[i]);
+						if (value != null) {
+							ranges[count++] = start + value[0];
+							ranges[count++] = start + value[1];
+						}
+					}
+				}
+			}
+			
+			// sort the ranges by their start offsets
+			long[] result = new long[count];
+			System.arraycopy(ranges, 0, result, 0, count);
+			for (int i = 2; i < count; i += 2) {
+				for (int j = i; j > 0 && result[j - 2] > result[j]; j -= 2) {
+					long s = result[j - 2], e = result[j - 1];
+					result[j - 2] = result[j];
+					result[j - 1] = result[j + 1];
+					result[j] = s;
+					result[j + 1] = e;
+				}
+			}
+			return result;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Parse the cross-reference table or stream at the start of <code>bytes</code>.
+	 * 
+	 * @param bytes the bytes starting with the cross-reference section.
+	 * @param objects the map to record the offsets of the objects in.
+	 * @param trailer the map to record the byte ranges of the trailer entries in.
+	 * 
+	 * @return <code>true</code> if the cross-reference section was parsed successfully.
+	 */
+	private static boolean parseXref(byte[] bytes, Map objects, Map trailer) {
+		int pos = skipWhitespace(bytes, 0);
+		if (startsWith(bytes, pos, "xref")) {
+			// cross-reference table followed by the trailer
+			pos += 4;
+			while (true) {
+				pos = skipWhitespace(bytes, pos);
+				if (startsWith(bytes, pos, "trailer")) {
+					return parseDictionary(bytes, skipWhitespace(bytes, pos + 7), trailer) >= 0;
+				}
+				long[] subsection = new long[2];
+				for (int i = 0; i < 2; ++i) {
+					int end = skipToken(bytes, pos);
+					subsection[i] = parseInteger(bytes, pos, end);
+					pos = skipWhitespace(bytes, end);
+				}
+				if (subsection[0] < 0 || subsection[1] < 0) {
+					return false;
+				}
+				for (long i = 0; i < subsection[1]; ++i) {
+					int end = skipToken(bytes, pos);
+					long offset = parseInteger(bytes, pos, end);
+					pos = skipWhitespace(bytes, end);
+					end = skipToken(bytes, pos);
+					pos = skipWhitespace(bytes, end);
+					end = skipToken(bytes, pos);
+					if (offset < 0 || end != pos + 1) {
+						return false;
+					}
+					if (bytes[pos] == 'n') {
+						objects.put(Long.valueOf(subsection[0] + i), Long.valueOf(offset));
+					}
+					pos = skipWhitespace(bytes, end);
+				}
+			}
+		}
+		
+		// cross-reference stream, whose dictionary is the trailer
+		pos = skipObjectHeader(bytes, pos);
+		if (pos < 0) {
+			return false;
+		}
+		pos = parseDictionary(bytes, skipWhitespace(bytes, pos), trailer);
+		if (pos < 0) {
+			return false;
+		}
+		pos = skipWhitespace(bytes, pos);
+		if (!startsWith(bytes, pos, "stream")) {
+			return false;
+		}
+		pos += 6;
+		if (charAt(bytes, pos) == '\r') {
+			++pos;
+		}
+		if (charAt(bytes, pos) == '\n') {
+			++pos;
+		}
+		long length = parseInteger(bytes, trailer, "Length");
+		if (length < 0 || pos + length > bytes.length) {
+			return false;
+		}
+		byte[] data = decodeStream(bytes, pos, (int)length, trailer);
+		long[] widths = parseIntegers(bytes, (int[])trailer.get("W"));
+		long[] index = parseIntegers(bytes, (int[])trailer.get("Index"));
+		if (index == null) {
+			index = new long[] { 0, parseInteger(bytes, trailer, "Size") };
+		}
+		if (data == null || widths == null || widths.length != 3 || index.length % 2 != 0) {
+			return false;
+		}
+		pos = 0;
+		for (int i = 0; i < index.length; i += 2) {
+			for (long j = 0; j < index[i + 1]; ++j) {
+				long[] fields = new long[] { (widths[0] == 0) ? 1 : 0, 0, 0 };
+				for (int k = 0; k < 3; ++k) {
+					if (widths[k] < 0 || widths[k] > 8) {
+						return false;
+					}
+					for (long l = 0; l < widths[k]; ++l) {
+						if (pos >= data.length) {
+							return false;
+						}
+						fields[k] = (fields[k] << 8) | (data[pos++] & 0xff);
+					}
+				}
+				if (fields[0] == 1) {
+					objects.put(Long.valueOf(index[i] + j), Long.valueOf(fields[1]));
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode the stream <code>data</code>. Only the <code>/FlateDecode</code> filter with
+	 * PNG predictors is supported, which is what TeX engines use for cross-reference streams.
+	 * 
+	 * @param bytes the bytes.
+	 * @param offset the offset of the stream data in <code>bytes</code>.
+	 * @param length the length of the stream data.
+	 * @param entries the byte ranges of the stream dictionary entries.
+	 * 
+	 * @return the decoded data, or <code>null</code> if the stream cannot be decoded.
+	 */
+	private static byte[] decodeStream(byte[] bytes, int offset, int length, Map entries) {
+		String filter = getValue(bytes, entries, "Filter");
+		if (filter == null) {
+			byte[] data = new byte[length];
+			System.arraycopy(bytes, offset, data, 0, length);
+			return data;
+		}
+		if (!filter.equals("/FlateDecode") && !filter.replaceAll("\\s", "").equals("[/FlateDecode]")) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, offset, length);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				out.write(buffer, 0, n);
+			}
+		}
+		catch (DataFormatException e) {
+			return null;
+		}
+		finally {
+			inflater.end();
+		}
+		byte[] data = out.toByteArray();
+		
+		// undo the predictor
+		int[] parms = (int[])entries.get("DecodeParms");
+		if (parms == null) {
+			return data;
+		}
+		Map parameters = new HashMap();
+		if (parseDictionary(bytes, parms[0], parameters) < 0) {
+			return null;
+		}
+		long predictor = parameters.containsKey("Predictor") ? parseInteger(bytes, parameters, "Predictor") : 1;
+		long columns = parameters.containsKey("Columns") ? parseInteger(bytes, parameters, "Columns") : 1;
+		if (predictor == 1) {
+			return data;
+		}
+		else if (predictor < 10 || columns <= 0 || columns > data.length) {
+			return null;
+		}
+		int rowLength = (int)columns;
+		int rows = data.length / (rowLength + 1);
+		byte[] result = new byte[rows * rowLength];
+		for (int row = 0; row < rows; ++row) {
+			int type = data[row * (rowLength + 1)];
+			for (int i = 0, pos = row * rowLength; i < rowLength; ++i, ++pos) {
+				int x = data[row * (rowLength + 1) + 1 + i] & 0xff;
+				int a = (i > 0) ? result[pos - 1] & 0xff : 0;
+				int b = (row > 0) ? result[pos - rowLength] & 0xff : 0;
+				int c = (i > 0 && row > 0) ? result[pos - rowLength - 1] & 0xff : 0;
+				switch (type) {
+				case 0:
+					break;
+				case 1:
+					x += a;
+					break;
+				case 2:
+					x += b;
+					break;
+				case 3:
+					x += (a + b) / 2;
+					break;
+				case 4:
+					int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+					x += (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+					break;
+				default:
+					return null;
+				}
+				result[pos] = (byte)x;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Parse the dictionary at <code>pos</code> and record the byte ranges of its values.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset of the dictionary.
+	 * @param entries the map to record the byte ranges of the values by key.
+	 * 
+	 * @return the offset after the dictionary, or <code>-1</code> if it is malformed.
+	 */
+	private static int parseDictionary(byte[] bytes, int pos, Map entries) {
+		if (!startsWith(bytes, pos, "<<")) {
+			return -1;
+		}
+		for (pos += 2; ; ) {
+			pos = skipWhitespace(bytes, pos);
+			if (startsWith(bytes, pos, ">>")) {
+				return pos + 2;
+			}
+			else if (charAt(bytes, pos) != '/') {
+				return -1;
+			}
+			int end = skipToken(bytes, pos + 1);
+			String key = new String(bytes, pos + 1, end - pos - 1);
+			int start = skipWhitespace(bytes, end);
+			end = skipValue(bytes, start);
+			if (end < 0) {
+				return -1;
+			}
+			
+			// indirect references consist of the object number, the generation and R
+			int generation = skipWhitespace(bytes, end);
+			int reference = skipWhitespace(bytes, skipToken(bytes, generation));
+			if (parseInteger(bytes, start, end) >= 0 && parseInteger(bytes, generation, skipToken(bytes, generation)) >= 0
+					&& charAt(bytes, reference) == 'R' && skipToken(bytes, reference) == reference + 1) {
+				end = reference + 1;
+			}
+			entries.put(key, new int[] { start, end });
+			pos = end;
+		}
+	}
+	
+	/**
+	 * Skip the value at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset of the value.
+	 * 
+	 * @return the offset after the value, or <code>-1</code> if it is malformed.
+	 */
+	private static int skipValue(byte[] bytes, int pos) {
+		int c = charAt(bytes, pos);
+		if (c == '(') {
+			for (int depth = 0; ; ++pos) {
+				c = charAt(bytes, pos);
+				if (c < 0) {
+					return -1;
+				}
+				else if (c == '\\') {
+					++pos;
+				}
+				else if (c == '(') {
+					++depth;
+				}
+				else if (c == ')' && --depth == 0) {
+					return pos + 1;
+				}
+			}
+		}
+		else if (startsWith(bytes, pos, "<<")) {
+			return parseDictionary(bytes, pos, new HashMap());
+		}
+		else if (c == '<') {
+			while ((c = charAt(bytes, ++pos)) != '>') {
+				if (c < 0) {
+					return -1;
+				}
+			}
+			return pos + 1;
+		}
+		else if (c == '[') {
+			for (++pos; ; ) {
+				pos = skipWhitespace(bytes, pos);
+				if (charAt(bytes, pos) == ']') {
+					return pos + 1;
+				}
+				pos = skipValue(bytes, pos);
+				if (pos < 0) {
+					return -1;
+				}
+			}
+		}
+		else if (c == '/') {
+			return skipToken(bytes, pos + 1);
+		}
+		int end = skipToken(bytes, pos);
+		return (end > pos) ? end : -1;
+	}
+	
+	/**
+	 * Skip the object header (<code>number generation obj</code>) at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset of the object header.
+	 * 
+	 * @return the offset after the object header, or <code>-1</code> if there is none.
+	 */
+	private static int skipObjectHeader(byte[] bytes, int pos) {
+		for (int i = 0; i < 2; ++i) {
+			int end = skipToken(bytes, pos);
+			if (parseInteger(bytes, pos, end) < 0) {
+				return -1;
+			}
+			pos = skipWhitespace(bytes, end);
+		}
+		return (startsWith(bytes, pos, "obj") && skipToken(bytes, pos) == pos + 3) ? pos + 3 : -1;
+	}
+	
+	/**
+	 * Skip the regular characters at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset.
+	 * 
+	 * @return the offset of the next whitespace or delimiter character.
+	 */
+	private static int skipToken(byte[] bytes, int pos) {
+		for (int c; (c = charAt(bytes, pos)) >= 0 && !isWhitespace(c) && "()<>[]{}/%".indexOf(c) < 0; ) {
+			++pos;
+		}
+		return pos;
+	}
+	
+	/**
+	 * Skip the whitespace and comments at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset.
+	 * 
+	 * @return the offset of the next regular or delimiter character.
+	 */
+	private static int skipWhitespace(byte[] bytes, int pos) {
+		for (int c; (c = charAt(bytes, pos)) >= 0; ++pos) {
+			if (c == '%') {
+				while ((c = charAt(bytes, pos + 1)) >= 0 && c != '\r' && c != '\n') {
+					++pos;
+				}
+			}
+			else if (!isWhitespace(c)) {
+				break;
+			}
+		}
+		return pos;
+	}
+	
+	/**
+	 * Parse the non-negative integer from <code>start</code> to <code>end</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param start the start offset.
+	 * @param end the end offset.
+	 * 
+	 * @return the integer, or <code>-1</code> if there is no non-negative integer.
+	 */
+	private static long parseInteger(byte[] bytes, int start, int end) {
+		if (start >= end || end - start > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int pos = start; pos < end; ++pos) {
+			if (bytes[pos] < '0' || bytes[pos] > '9') {
+				return -1;
+			}
+			value = value * 10 + (bytes[pos] - '0');
+		}
+		return value;
+	}
+	
+	/**
+	 * Parse the non-negative integer value of the dictionary entry for <code>key</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param entries the byte ranges of the dictionary entries.
+	 * @param key the key.
+	 * 
+	 * @return the integer, or <code>-1</code> if there is no non-negative integer.
+	 */
+	private static long parseInteger(byte[] bytes, Map entries, String key) {
+		int[] value = (int[])entries.get(key);
+		return (value != null) ? parseInteger(bytes, value[0], value[1]) : -1;
+	}
+	
+	/**
+	 * Parse the array of non-negative integers in the byte range <code>value</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param value the byte range of the array, or <code>null</code>.
+	 * 
+	 * @return the integers, or <code>null</code> if there is no array of non-negative integers.
+	 */
+	private static long[] parseIntegers(byte[] bytes, int[] value) {
+		if (value == null || charAt(bytes, value[0]) != '[') {
+			return null;
+		}
+		long[] integers = new long[0];
+		for (int pos = skipWhitespace(bytes, value[0] + 1); charAt(bytes, pos) != ']'; ) {
+			int end = skipToken(bytes, pos);
+			long integer = parseInteger(bytes, pos, end);
+			if (integer < 0) {
+				return null;
+			}
+			long[] tmp = new long[integers.length + 1];
+			System.arraycopy(integers, 0, tmp, 0, integers.length);
+			tmp[integers.length] = integer;
+			integers = tmp;
+			pos = skipWhitespace(bytes, end);
+		}
+		return integers;
+	}
+	
+	/**
+	 * Return the value of the dictionary entry for <code>key</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param entries the byte ranges of the dictionary entries.
+	 * @param key the key.
+	 * 
+	 * @return the value, or <code>null</code> if there is no entry for <code>key</code>.
+	 */
+	private static String getValue(byte[] bytes, Map entries, String key) {
+		int[] value = (int[])entries.get(key);
+		return (value != null) ? new String(bytes, value[0], value[1] - value[0]) : null;
+	}
+	
+	/**
+	 * Return the character at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset.
+	 * 
+	 * @return the character, or <code>-1</code> if <code>pos</code> is out of range.
+	 */
+	private static int charAt(byte[] bytes, int pos) {
+		return (pos < bytes.length) ? bytes[pos] & 0xff : -1;
+	}
+	
+	/**
+	 * Check whether the character <code>c</code> is a PDF whitespace character.
+	 * 
+	 * @param c the character.
+	 * 
+	 * @return <code>true</code> if <code>c</code> is whitespace.
+	 */
+	private static boolean isWhitespace(int c) {
+		return c == 0 || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == ' ';
+	}
+	
+	/**
+	 * Check whether <code>bytes</code> contain <code>s</code> at <code>pos</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param pos the offset.
+	 * @param s the string.
+	 * 
+	 * @return <code>true</code> if <code>s</code> is found at <code>pos</code>.
+	 */
+	private static boolean startsWith(byte[] bytes, int pos, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			if (charAt(bytes, pos + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the offset of the last occurrence of <code>s</code> in <code>bytes</code>.
+	 * 
+	 * @param bytes the bytes.
+	 * @param s the string.
+	 * 
+	 * @return the offset, or <code>-1</code> if <code>s</code> is not found.
+	 */
+	private static int lastIndexOf(byte[] bytes, String s) {
+		for (int pos = bytes.length - s.length(); pos >= 0; --pos) {
+			if (startsWith(bytes, pos, s)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Read the bytes from <code>start</code> to <code>end</code> of the file <code>in</code>.
+	 * 
+	 * @param in the file.
+	 * @param start the start offset.
+	 * @param end the end offset.
+	 * 
+	 * @return the bytes.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	private static byte[] read(RandomAccessFile in, long start, long end) throws IOException {
+		byte[] bytes = new byte[(int)(end - start)];
+		in.seek(start);
+		in.readFully(bytes);
+		return bytes;
+	}
+}
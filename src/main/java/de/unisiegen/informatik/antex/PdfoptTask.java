@@ -36,7 +36,7 @@ public class PdfoptTask extends AbstractSimpleTask {
 		commandline.add(SystemUtils.executableName("pdfopt"));
 		commandline.add(FileUtils.translatePath(infile.getPath()));
 		commandline.add(FileUtils.translatePath(outfile.getPath()));
-		launch(commandline, infile.getParentFile());
+		launch(commandline, infile.getParentFile(), infile);
 
 		// verbose logging
 		logVerbose("Successfully optimized PDF file " + infile.getName());
@@ -54,7 +54,7 @@ public class Ps2pdfTask extends AbstractSimpleTask {
 		}
 		commandline.add(FileUtils.translatePath(infile.getPath()));
 		commandline.add(FileUtils.translatePath(outfile.getPath()));
-		launch(commandline, outfile.getParentFile());
+		launch(commandline, outfile.getParentFile(), infile);
 		
 		// verbose logging
 		logVerbose("Successfully converted PostScript file " + infile.getName() + " to PDF");
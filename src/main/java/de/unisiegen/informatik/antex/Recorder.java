@@ -0,0 +1,145 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Helpers for the recorder files (<code>.fls</code>) written by TeX with the
+ * <code>-recorder</code> option, which list all files read and written by a run. The
+ * recorded input files are used to check whether anything a document depends on changed
+ * since it was last processed.
+ * 
+ * @author Benedikt Meurer
+ */
+public class Recorder {
+	/**
+	 * Read the input files from the recorder file <code>file</code>. Files that were also
+	 * written by the run (i.e. the <code>.aux</code> files) are not inputs.
+	 * 
+	 * @param file the recorder file.
+	 * 
+	 * @return the list of absolute input files, or <code>null</code> if <code>file</code>
+	 *         cannot be read.
+	 */
+	public static List readInputs(File file) {
+		FileUtils fileUtils = FileUtils.getFileUtils();
+		Set inputs = new LinkedHashSet();
+		Set outputs = new LinkedHashSet();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				File directory = file.getParentFile();
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("PWD ")) {
+						directory = new File(line.substring(4));
+					}
+					else if (line.startsWith("INPUT ")) {
+						inputs.add(fileUtils.resolveFile(directory, line.substring(6)));
+					}
+					else if (line.startsWith("OUTPUT ")) {
+						outputs.add(fileUtils.resolveFile(directory, line.substring(7)));
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+		inputs.removeAll(outputs);
+		return new LinkedList(inputs);
+	}
+	
+	/**
+	 * Compute the state of the <code>inputs</code>. Files below the <code>baseDirectory</code>
+	 * are recorded by their relative path, size, modification time and digest, other files
+	 * (i.e. from the TeX distribution) by their absolute path, size and modification time.
+	 * 
+	 * @param inputs the list of input files.
+	 * @param baseDirectory the base directory of the document.
+	 * 
+	 * @return the state, keyed by path.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static Properties computeState(List inputs, File baseDirectory) throws BuildException {
+		Properties state = new Properties();
+		for (Iterator it = inputs.iterator(); it.hasNext(); ) {
+			File input = (File)it.next();
+			if (!input.isFile()) {
+				continue;
+			}
+			String path = getPath(input, baseDirectory);
+			String value = input.length() + ":" + input.lastModified();
+			if (!new File(path).isAbsolute()) {
+				value += ":" + SystemUtils.toHexString(SystemUtils.digestFile(input, false));
+			}
+			state.setProperty(path, value);
+		}
+		return state;
+	}
+	
+	/**
+	 * Find an input in the <code>state</code> that changed since the state was computed. An
+	 * input is unchanged if its size and modification time are the same, or its size and
+	 * digest if recorded (so that a file with the same contents at a different location or
+	 * with a different modification time is unchanged).
+	 * 
+	 * @param state the state computed by {@link #computeState(List, File)}.
+	 * @param baseDirectory the base directory of the document.
+	 * @param ignore the set of paths to ignore, or <code>null</code>.
+	 * 
+	 * @return the path of the first changed input, or <code>null</code> if none changed.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static String findChange(Properties state, File baseDirectory, Set ignore) throws BuildException {
+		for (Iterator it = state.keySet().iterator(); it.hasNext(); ) {
+			String path = (String)it.next();
+			if (ignore != null && ignore.contains(path)) {
+				continue;
+			}
+			File input = new File(path).isAbsolute() ? new File(path) : new File(baseDirectory, path);
+			if (!input.isFile()) {
+				return path;
+			}
+			String[] values = state.getProperty(path).split(":");
+			if (values.length < 2 || !values[0].equals(String.valueOf(input.length()))) {
+				return path;
+			}
+			if (!values[1].equals(String.valueOf(input.lastModified()))
+					&& (values.length < 3 || !values[2].equals(SystemUtils.toHexString(SystemUtils.digestFile(input, false))))) {
+				return path;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the path of <code>file</code> relative to the <code>baseDirectory</code> (using
+	 * forward slashes), or the absolute path if <code>file</code> is not below it.
+	 * 
+	 * @param file the file.
+	 * @param baseDirectory the base directory.
+	 * 
+	 * @return the relative or absolute path.
+	 */
+	public static String getPath(File file, File baseDirectory) {
+		String path = FileUtils.getFileUtils().removeLeadingPath(baseDirectory.getAbsoluteFile(), file.getAbsoluteFile());
+		return new File(path).isAbsolute() ? path : path.replace(File.separatorChar, '/');
+	}
+}
@@ -0,0 +1,123 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * A document processed by an antex worker on behalf of the {@link Coordinator}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class RemoteJob {
+	private int attempts;
+	private BuildException exception;
+	private File infile;
+	private File outfile;
+	private File result;
+	private File root;
+	
+	/**
+	 * Allocate a new RemoteJob.
+	 * 
+	 * @param infile the input file.
+	 * @param outfile the output file.
+	 * @param root the base directory of the input file, whose files are sent to the workers.
+	 */
+	public RemoteJob(File infile, File outfile, File root) {
+		this.attempts = 0;
+		this.exception = null;
+		this.infile = infile;
+		this.outfile = outfile;
+		this.result = null;
+		this.root = root;
+	}
+	
+	/**
+	 * Return the number of attempts to process this job.
+	 * 
+	 * @return the number of attempts.
+	 */
+	public int getAttempts() {
+		return this.attempts;
+	}
+	
+	/**
+	 * Increment the number of attempts to process this job.
+	 */
+	public void incrementAttempts() {
+		this.attempts++;
+	}
+	
+	/**
+	 * Return the exception if processing failed.
+	 * 
+	 * @return the exception, or <code>null</code>.
+	 */
+	public BuildException getException() {
+		return this.exception;
+	}
+	
+	/**
+	 * Set the exception if processing failed.
+	 * 
+	 * @param exception the exception.
+	 */
+	public void setException(BuildException exception) {
+		this.exception = exception;
+	}
+	
+	/**
+	 * Return the input file.
+	 * 
+	 * @return the input file.
+	 */
+	public File getInfile() {
+		return this.infile;
+	}
+	
+	/**
+	 * Return the output file.
+	 * 
+	 * @return the output file.
+	 */
+	public File getOutfile() {
+		return this.outfile;
+	}
+	
+	/**
+	 * Return the temporary file holding the output received from the worker.
+	 * 
+	 * @return the temporary result file, or <code>null</code>.
+	 */
+	public File getResult() {
+		return this.result;
+	}
+	
+	/**
+	 * Set the temporary file holding the output received from the worker.
+	 * 
+	 * @param result the temporary result file.
+	 */
+	public void setResult(File result) {
+		this.result = result;
+	}
+	
+	/**
+	 * Return the base directory of the input file, whose files are sent to the workers.
+	 * 
+	 * @return the base directory.
+	 */
+	public File getRoot() {
+		return this.root;
+	}
+	
+	/**
+	 * Check whether this job is finished (successfully or not).
+	 * 
+	 * @return <code>true</code> if finished.
+	 */
+	public boolean isDone() {
+		return this.result != null || this.exception != null;
+	}
+}
@@ -0,0 +1,222 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Helpers for the protocol between the {@link Coordinator} and the antex workers
+ * ({@link WorkerTask}).
+ * 
+ * <p>After connecting, the coordinator and the worker prove to each other that they know the
+ * shared secret: each side sends a random challenge and answers the challenge of the other
+ * side with an HMAC of the challenge keyed with the secret. The connection is not encrypted,
+ * so workers on other hosts should be reached through trusted networks or tunnels.</p>
+ * 
+ * <p>For each job, the coordinator sends the task class name, the task attributes, the
+ * environment variables, the identifier of the base directory of the input file followed
+ * by the manifest of its files (relative path and digest) unless already sent on the
+ * connection, the relative path of the input file and the name of the output file. The
+ * worker replies with the digests of the input files it does not have yet, which the
+ * coordinator sends afterwards. Finally the worker replies with a success flag followed by the digest and
+ * contents of the output file, or the error message and tool output.</p>
+ * 
+ * @author Benedikt Meurer
+ */
+public class RemoteProtocol {
+	private static String[] ATTRIBUTES = new String[] {
+		"draftmode", "incremental", "memorybudget", "outputbuffersize", "pdf",
+		"reproducible", "skipunchanged", "timeout", "verbose"
+	};
+	private static int CHALLENGE_LENGTH = 16;
+	private static String[] VARIABLES = new String[] {
+		"BIBINPUTS", "BSTINPUTS", "FORCE_SOURCE_DATE", "SOURCE_DATE_EPOCH", "TEXINPUTS"
+	};
+	
+	/**
+	 * Check whether the task attribute <code>name</code> may be set by coordinators. Only
+	 * attributes that affect the output of the tools are permitted, as the remaining ones
+	 * (i.e. files, cleanup or the workers) are handled by the coordinator itself.
+	 * 
+	 * @param name the lower case attribute name.
+	 * 
+	 * @return <code>true</code> if permitted.
+	 */
+	public static boolean isPermittedAttribute(String name) {
+		return Arrays.asList(ATTRIBUTES).contains(name);
+	}
+	
+	/**
+	 * Check whether the environment variable <code>name</code> may be set by coordinators.
+	 * Variables that change which programs are run or how (i.e. <code>PATH</code>,
+	 * <code>LD_PRELOAD</code> or <code>shell_escape</code>) are not permitted.
+	 * 
+	 * @param name the variable name.
+	 * 
+	 * @return <code>true</code> if permitted.
+	 */
+	public static boolean isPermittedVariable(String name) {
+		return Arrays.asList(VARIABLES).contains(name);
+	}
+	
+	/**
+	 * Authenticate the peer connected to <code>in</code> and <code>out</code> using the
+	 * shared <code>secret</code>.
+	 * 
+	 * @param in the input stream from the peer.
+	 * @param out the output stream to the peer.
+	 * @param secret the shared secret.
+	 * @param worker <code>true</code> on the worker side, <code>false</code> on the
+	 *               coordinator side.
+	 * 
+	 * @throws IOException if the peer does not know the secret or in case of an error.
+	 */
+	public static void authenticate(DataInputStream in, DataOutputStream out, String secret, boolean worker) throws IOException {
+		byte[] challenge = new byte[CHALLENGE_LENGTH];
+		new SecureRandom().nextBytes(challenge);
+		out.write(challenge);
+		out.flush();
+		byte[] peerChallenge = new byte[CHALLENGE_LENGTH];
+		in.readFully(peerChallenge);
+		byte[] response = computeResponse(secret, worker ? "worker" : "coordinator", peerChallenge);
+		out.write(response);
+		out.flush();
+		byte[] peerResponse = new byte[response.length];
+		in.readFully(peerResponse);
+		if (!MessageDigest.isEqual(peerResponse, computeResponse(secret, worker ? "coordinator" : "worker", challenge))) {
+			throw new IOException("Authentication failed");
+		}
+	}
+	
+	/**
+	 * Read a string from <code>in</code>.
+	 * 
+	 * @param in the input stream.
+	 * 
+	 * @return the string.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * Write the string <code>s</code> to <code>out</code>.
+	 * 
+	 * @param out the output stream.
+	 * @param s the string.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Read file contents from <code>in</code> and store them to <code>file</code>. The
+	 * contents must match the <code>digest</code>.
+	 * 
+	 * @param in the input stream.
+	 * @param file the file.
+	 * @param digest the expected hex digest of the contents.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public static void readFile(DataInputStream in, File file, String digest) throws IOException {
+		long length = in.readLong();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			while (length > 0) {
+				int n = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+				if (n < 0) {
+					throw new EOFException();
+				}
+				out.write(buffer, 0, n);
+				length -= n;
+			}
+		}
+		finally {
+			out.close();
+		}
+		try {
+			if (!SystemUtils.toHexString(SystemUtils.digestFile(file, false)).equals(digest)) {
+				throw new IOException("Digest mismatch for " + file.getPath());
+			}
+		}
+		catch (BuildException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write the contents of <code>file</code> to <code>out</code>.
+	 * 
+	 * @param out the output stream.
+	 * @param file the file.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public static void writeFile(DataOutputStream out, File file) throws IOException {
+		out.writeLong(file.length());
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			long length = file.length();
+			while (length > 0) {
+				int n = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+				if (n < 0) {
+					throw new IOException("File " + file.getPath() + " changed while sending");
+				}
+				out.write(buffer, 0, n);
+				length -= n;
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Compute the response of the <code>role</code> to the <code>challenge</code>.
+	 * 
+	 * @param secret the shared secret.
+	 * @param role the role of the responding side.
+	 * @param challenge the challenge.
+	 * 
+	 * @return the response.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	private static byte[] computeResponse(String secret, String role, byte[] challenge) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+			mac.update(role.getBytes("UTF-8"));
+			return mac.doFinal(challenge);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("Failed to compute authentication response: " + e.getMessage());
+		}
+	}
+}
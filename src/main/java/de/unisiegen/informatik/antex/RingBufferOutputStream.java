@@ -0,0 +1,125 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that keeps only the last bytes written to it in a fixed-size buffer,
+ * optionally passing all bytes on to a spill stream.
+ * 
+ * @author Benedikt Meurer
+ */
+public class RingBufferOutputStream extends OutputStream {
+	private byte[] buffer;
+	private long count;
+	private OutputStream spill;
+	
+	/**
+	 * Allocate a new RingBufferOutputStream.
+	 * 
+	 * @param capacity the number of bytes to keep.
+	 * @param spill the stream to pass all bytes on to, or <code>null</code>.
+	 */
+	public RingBufferOutputStream(int capacity, OutputStream spill) {
+		this.buffer = new byte[Math.max(capacity, 1)];
+		this.count = 0;
+		this.spill = spill;
+	}
+	
+	/**
+	 * Write the byte <code>b</code> to the buffer.
+	 * 
+	 * @param b the byte to write.
+	 * 
+	 * @throws IOException in case of an error writing to the spill stream.
+	 */
+	public synchronized void write(int b) throws IOException {
+		this.buffer[(int)(this.count++ % this.buffer.length)] = (byte)b;
+		if (this.spill != null) {
+			this.spill.write(b);
+		}
+	}
+	
+	/**
+	 * Write <code>len</code> bytes from <code>b</code> starting at <code>off</code> to the buffer.
+	 * 
+	 * @param b the bytes to write.
+	 * @param off the start offset.
+	 * @param len the number of bytes to write.
+	 * 
+	 * @throws IOException in case of an error writing to the spill stream.
+	 */
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (this.spill != null) {
+			this.spill.write(b, off, len);
+		}
+		if (len > this.buffer.length) {
+			this.count += len - this.buffer.length;
+			off += len - this.buffer.length;
+			len = this.buffer.length;
+		}
+		int pos = (int)(this.count % this.buffer.length);
+		int n = Math.min(len, this.buffer.length - pos);
+		System.arraycopy(b, off, this.buffer, pos, n);
+		System.arraycopy(b, off + n, this.buffer, 0, len - n);
+		this.count += len;
+	}
+	
+	/**
+	 * Flush the spill stream.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public synchronized void flush() throws IOException {
+		if (this.spill != null) {
+			this.spill.flush();
+		}
+	}
+	
+	/**
+	 * Close the spill stream.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	public synchronized void close() throws IOException {
+		if (this.spill != null) {
+			this.spill.close();
+			this.spill = null;
+		}
+	}
+	
+	/**
+	 * Check whether anything was written to the buffer.
+	 * 
+	 * @return <code>true</code> if nothing was written.
+	 */
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+	
+	/**
+	 * Return the buffered output. If earlier output was dropped, the text starts at the
+	 * first complete line (unless the buffer holds only part of a single line) and is
+	 * preceded by a note about the omitted output.
+	 * 
+	 * @return the buffered output.
+	 */
+	public synchronized String toString() {
+		if (this.count <= this.buffer.length) {
+			return new String(this.buffer, 0, (int)this.count);
+		}
+		byte[] bytes = new byte[this.buffer.length];
+		int pos = (int)(this.count % this.buffer.length);
+		System.arraycopy(this.buffer, pos, bytes, 0, this.buffer.length - pos);
+		System.arraycopy(this.buffer, 0, bytes, this.buffer.length - pos, pos);
+		int start = 0;
+		while (start < bytes.length - 1 && bytes[start] != '\n') {
+			++start;
+		}
+		
+		// keep the whole buffer if it does not contain a complete line
+		start = (start < bytes.length - 1) ? start + 1 : 0;
+		return "[" + (this.count - bytes.length + start) + " bytes of output omitted]\n"
+			+ new String(bytes, start, bytes.length - start);
+	}
+}
@@ -1,7 +1,15 @@
 package de.unisiegen.informatik.antex;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.util.FileUtils;
@@ -17,7 +25,7 @@ public class SystemUtils {
 		try {
 			file = file.getCanonicalFile().getParentFile();
 			if (file != null) {
-				if (!file.mkdirs()) {
+				if (!file.mkdirs() && !file.isDirectory()) {
 					throw new BuildException("Failed to create directory " + file.getPath());
 				}
 			}
@@ -80,4 +88,193 @@ public class SystemUtils {
 		}
 		return null;
 	}
+	
+	/**
+	 * Check whether the files <code>file1</code> and <code>file2</code> have the same contents.
+	 * The files are first compared by size and afterwards by a digest of their contents. PDF
+	 * files (as determined by the extension of <code>file1</code>) are compared with the
+	 * <code>/ID</code> of their trailer and the <code>/CreationDate</code> and
+	 * <code>/ModDate</code> of their document information dictionary ignored (see
+	 * {@link PdfMetadata}).
+	 * 
+	 * @param file1 the first file.
+	 * @param file2 the second file.
+	 * 
+	 * @return <code>true</code> if both files exist and have the same contents.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static boolean contentEquals(File file1, File file2) throws BuildException {
+		if (!file1.isFile() || !file2.isFile() || file1.length() != file2.length()) {
+			return false;
+		}
+		boolean normalize = file1.getName().toLowerCase().endsWith(".pdf");
+		return MessageDigest.isEqual(digestFile(file1, normalize), digestFile(file2, normalize));
+	}
+	
+	/**
+	 * Check whether the contents of <code>file</code> match the <code>digest</code>.
+	 * 
+	 * @param file the file.
+	 * @param digest the digest as returned by {@link #digestFile(File, boolean)}.
+	 * 
+	 * @return <code>true</code> if <code>file</code> exists and matches <code>digest</code>.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static boolean contentEquals(File file, byte[] digest) throws BuildException {
+		return file.isFile() && MessageDigest.isEqual(digestFile(file, false), digest);
+	}
+	
+	/**
+	 * Calculate the digest of the contents of <code>file</code>. If <code>normalize</code> is
+	 * <code>true</code>, the PDF metadata values located by {@link PdfMetadata} are excluded
+	 * from the digest.
+	 * 
+	 * @param file the file.
+	 * @param normalize whether to normalize PDF metadata.
+	 * 
+	 * @return the digest of <code>file</code>.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static byte[] digestFile(File file, boolean normalize) throws BuildException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new BuildException("SHA-1 message digest not available", e);
+		}
+		try {
+			long[] ranges = normalize ? PdfMetadata.findRanges(file) : new long[0];
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				// digest everything but the byte ranges of the metadata values
+				byte[] buffer = new byte[8192];
+				long position = 0;
+				int range = 0;
+				for (int n; (n = in.read(buffer)) > 0; position += n) {
+					for (int offset = 0; offset < n; ) {
+						if (range < ranges.length && position + offset >= ranges[range + 1]) {
+							range += 2;
+						}
+						else if (range < ranges.length && position + offset >= ranges[range]) {
+							offset = (int)Math.min(n, ranges[range + 1] - position);
+						}
+						else {
+							int count = (range < ranges.length) ? (int)Math.min(n - offset, ranges[range] - position - offset) : n - offset;
+							digest.update(buffer, offset, count);
+							offset += count;
+						}
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to read " + file.getPath(), e);
+		}
+		return digest.digest();
+	}
+	
+	/**
+	 * Compute the SHA-1 digest of the string <code>s</code> (encoded as UTF-8).
+	 * 
+	 * @param s the string.
+	 * 
+	 * @return the digest.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static byte[] digestString(String s) throws BuildException {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+		}
+		catch (Exception e) {
+			throw new BuildException("Failed to compute digest", e);
+		}
+	}
+	
+	/**
+	 * Return the TeX code that sets the PDF trailer ID of the document <code>file</code>
+	 * to a value derived from the name and digest of the file. pdfTeX otherwise derives the
+	 * trailer ID from the time and the path of the output file, so the same document yields
+	 * different PDF files in different directories. The code does nothing for TeX engines
+	 * without <code>\pdftrailerid</code>.
+	 * 
+	 * @param file the document.
+	 * 
+	 * @return the TeX code.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static String pdfTrailerId(File file) throws BuildException {
+		return "\\ifdefined\\pdftrailerid\\pdftrailerid{" + file.getName() + "-" + toHexString(digestFile(file, false)) + "}\\fi";
+	}
+	
+	/**
+	 * Load the properties from <code>file</code>.
+	 * 
+	 * @param file the properties file.
+	 * 
+	 * @return the properties, or <code>null</code> if <code>file</code> cannot be read.
+	 */
+	public static Properties loadProperties(File file) {
+		try {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			}
+			finally {
+				in.close();
+			}
+			return properties;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Store the <code>properties</code> to <code>file</code>.
+	 * 
+	 * @param file the properties file.
+	 * @param properties the properties.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static void storeProperties(File file, Properties properties) throws BuildException {
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				properties.store(out, null);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to write " + file.getPath(), e);
+		}
+	}
+	
+	/**
+	 * Convert the <code>bytes</code> to a hexadecimal string.
+	 * 
+	 * @param bytes the bytes.
+	 * 
+	 * @return the hexadecimal string.
+	 */
+	public static String toHexString(byte[] bytes) {
+		StringBuffer buffer = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; ++i) {
+			buffer.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			buffer.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return buffer.toString();
+	}
 }
@@ -0,0 +1,205 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Persistent TeX cache directory, which is used as <code>TEXMFVAR</code> for the TeX tools,
+ * so that generated fonts, formats and filename databases are shared between builds and
+ * parallel jobs. The <code>TEXMFVAR</code> tree of the user (i.e. with formats built using
+ * <code>fmtutil-user</code>) remains visible to the tools as an auxiliary tree.
+ * <p>
+ * Only the updates of the cache directory by antex itself are locked. The TeX tools add
+ * generated files and append them to the filename database (using <code>mktexupd</code>)
+ * without any locking, so concurrent tools may lose each other's database entries. The
+ * database is therefore rebuilt by the next build whenever the tools changed it.
+ * 
+ * @author Benedikt Meurer
+ */
+public class TexCache {
+	private static String[] DIRECTORIES = new String[] {
+		"fonts/pk", "fonts/source", "fonts/tfm", "luatex-cache", "web2c"
+	};
+	private static String LS_R_HEADER = "% ls-R -- filename database for kpathsea; do not change this line.\n";
+	private static Map locks = new HashMap();
+	private static Map userTrees = new HashMap();
+	
+	/**
+	 * Prepare the cache directory <code>dir</code> for use by the TeX tools. All updates of
+	 * the cache directory by antex happen while holding a lock on the directory, so that
+	 * concurrent builds can share the cache directory. If the cache directory is not yet
+	 * initialized, the directory layout is created and the kpathsea filename database is
+	 * built using <code>mktexlsr</code>. Otherwise the filename database is rebuilt if it was
+	 * modified by the TeX tools since it was last built, as recorded by a stamp file.
+	 * 
+	 * @param dir the cache directory.
+	 * @param task the task using the cache directory (for logging).
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public static void prepare(File dir, Task task) throws BuildException {
+		if (!dir.mkdirs() && !dir.isDirectory()) {
+			throw new BuildException("Failed to create directory " + dir.getPath());
+		}
+		synchronized (getLock(dir)) {
+			// remember the TEXMFVAR tree of the user
+			String key = dir.getAbsolutePath();
+			if (!userTrees.containsKey(key)) {
+				String tree = run(new String[] { SystemUtils.executableName("kpsewhich"), "-var-value=TEXMFVAR" }, task);
+				tree = (tree != null) ? tree.trim() : "";
+				userTrees.put(key, (tree.length() > 0 && !new File(tree).getAbsoluteFile().equals(dir.getAbsoluteFile())) ? tree : null);
+			}
+			
+			File lockFile = new File(dir, ".lock");
+			try {
+				RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+				try {
+					FileLock lock = file.getChannel().lock();
+					try {
+						File lsR = new File(dir, "ls-R");
+						File stamp = new File(dir, ".stamp");
+						if (!lsR.isFile()) {
+							for (int i = 0; i < DIRECTORIES.length; ++i) {
+								File subdir = new File(dir, DIRECTORIES[i]);
+								if (!subdir.mkdirs() && !subdir.isDirectory()) {
+									throw new BuildException("Failed to create directory " + subdir.getPath());
+								}
+							}
+							updateDatabase(dir, task);
+						}
+						else if (!stamp.isFile() || lsR.lastModified() > stamp.lastModified()) {
+							updateDatabase(dir, task);
+						}
+					}
+					finally {
+						lock.release();
+					}
+				}
+				finally {
+					file.close();
+				}
+			}
+			catch (IOException e) {
+				throw new BuildException("Failed to prepare TeX cache " + dir.getPath(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Return the environment variables that direct the TeX tools to the cache directory
+	 * <code>dir</code>, which must have been prepared using {@link #prepare(File, Task)}.
+	 * 
+	 * @param dir the cache directory.
+	 * 
+	 * @return the environment variables as <code>key=value</code> strings.
+	 */
+	public static String[] getEnvironment(File dir) {
+		String path = dir.getAbsolutePath();
+		String userTree;
+		synchronized (getLock(dir)) {
+			userTree = (String)userTrees.get(path);
+		}
+		if (userTree == null) {
+			return new String[] {
+				"TEXMFVAR=" + path,
+				"TEXMFCACHE=" + path,
+				"VARTEXFONTS=" + new File(dir, "fonts").getAbsolutePath()
+			};
+		}
+		String auxTrees = System.getenv("TEXMFAUXTREES");
+		return new String[] {
+			"TEXMFVAR=" + path,
+			"TEXMFCACHE=" + path,
+			"VARTEXFONTS=" + new File(dir, "fonts").getAbsolutePath(),
+			"TEXMFAUXTREES=" + userTree + "," + ((auxTrees != null) ? auxTrees : "")
+		};
+	}
+	
+	/**
+	 * Build the kpathsea filename database of the cache directory <code>dir</code> using
+	 * <code>mktexlsr</code>, or write an empty database if <code>mktexlsr</code> is not
+	 * available. Afterwards the stamp file is updated.
+	 * 
+	 * @param dir the cache directory.
+	 * @param task the task using the cache directory (for logging).
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	private static void updateDatabase(File dir, Task task) throws IOException {
+		task.log("Building filename database of TeX cache " + dir.getPath(), Project.MSG_VERBOSE);
+		File lsR = new File(dir, "ls-R");
+		if (run(new String[] { SystemUtils.executableName("mktexlsr"), dir.getAbsolutePath() }, task) == null || !lsR.isFile()) {
+			File tmpfile = FileUtils.getFileUtils().createTempFile("tmp", lsR.getName(), dir, true);
+			OutputStream out = new FileOutputStream(tmpfile);
+			try {
+				out.write(LS_R_HEADER.getBytes("US-ASCII"));
+			}
+			finally {
+				out.close();
+			}
+			SystemUtils.renameFile(tmpfile, lsR);
+		}
+		
+		// remember when the database was built
+		File stamp = new File(dir, ".stamp");
+		if ((!stamp.createNewFile() && !stamp.isFile()) || !stamp.setLastModified(Math.max(System.currentTimeMillis(), lsR.lastModified()))) {
+			throw new IOException("Failed to update " + stamp.getPath());
+		}
+	}
+	
+	/**
+	 * Run the <code>cmdline</code> with the environment of the build.
+	 * 
+	 * @param cmdline the command line.
+	 * @param task the task (for logging).
+	 * 
+	 * @return the output of the command, or <code>null</code> if it failed.
+	 */
+	private static String run(String[] cmdline, Task task) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Execute execute = new Execute(new PumpStreamHandler(output, new ByteArrayOutputStream()));
+		execute.setAntRun(task.getProject());
+		execute.setCommandline(cmdline);
+		try {
+			if (!Execute.isFailure(execute.execute())) {
+				return output.toString();
+			}
+			task.log(cmdline[0] + " failed", Project.MSG_VERBOSE);
+		}
+		catch (IOException e) {
+			task.log("Failed to execute " + cmdline[0] + ": " + e.getMessage(), Project.MSG_VERBOSE);
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the lock object for the cache directory <code>dir</code> within this JVM.
+	 * 
+	 * @param dir the cache directory.
+	 * 
+	 * @return the lock object.
+	 */
+	private static synchronized Object getLock(File dir) {
+		String key = dir.getAbsolutePath();
+		Object lock = locks.get(key);
+		if (lock == null) {
+			lock = new Object();
+			locks.put(key, lock);
+		}
+		return lock;
+	}
+}
@@ -0,0 +1,34 @@
+package de.unisiegen.informatik.antex;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Exception thrown if an external tool terminates with an error.
+ * 
+ * @author Benedikt Meurer
+ */
+public class ToolException extends BuildException {
+	private static final long serialVersionUID = 1L;
+	
+	private String output;
+	
+	/**
+	 * Allocate a new ToolException.
+	 * 
+	 * @param message the error message.
+	 * @param output the (last) output of the tool.
+	 */
+	public ToolException(String message, String output) {
+		super(message);
+		this.output = output;
+	}
+	
+	/**
+	 * Return the (last) output of the tool.
+	 * 
+	 * @return the output of the tool.
+	 */
+	public String getOutput() {
+		return this.output;
+	}
+}
@@ -0,0 +1,75 @@
+package de.unisiegen.informatik.antex;
+
+/**
+ * Resource limits for a tool, configured using nested <code>&lt;limit&gt;</code> elements.
+ * 
+ * @author Benedikt Meurer
+ */
+public class ToolLimit {
+	private int memory;
+	private String name;
+	private int processes;
+	
+	/**
+	 * Allocate a new ToolLimit.
+	 */
+	public ToolLimit() {
+		this.memory = 0;
+		this.name = null;
+		this.processes = 0;
+	}
+	
+	/**
+	 * Return the estimated peak memory of one tool process in megabytes.
+	 * 
+	 * @return the estimated peak memory, or <code>0</code> if unknown.
+	 */
+	public int getMemory() {
+		return this.memory;
+	}
+	
+	/**
+	 * Set the estimated peak memory of one tool process in megabytes.
+	 * 
+	 * @param memory the estimated peak memory, or <code>0</code> if unknown.
+	 */
+	public void setMemory(int memory) {
+		this.memory = memory;
+	}
+	
+	/**
+	 * Return the tool name (i.e. <code>pdflatex</code> or <code>ps2pdf</code>).
+	 * 
+	 * @return the tool name.
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Set the tool name (i.e. <code>pdflatex</code> or <code>ps2pdf</code>).
+	 * 
+	 * @param name the tool name.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Return the maximum number of concurrent processes of the tool.
+	 * 
+	 * @return the maximum number of concurrent processes, or <code>0</code> if unlimited.
+	 */
+	public int getProcesses() {
+		return this.processes;
+	}
+	
+	/**
+	 * Set the maximum number of concurrent processes of the tool.
+	 * 
+	 * @param processes the maximum number of concurrent processes, or <code>0</code> if unlimited.
+	 */
+	public void setProcesses(int processes) {
+		this.processes = processes;
+	}
+}
@@ -0,0 +1,161 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Admission control for tool processes, shared by all antex tasks of a project. A tool
+ * process is started only if the number of running processes of the tool is below its
+ * limit and the estimated peak memory of all running processes fits into the memory
+ * budget. The estimate for a tool is the larger of the configured estimate and the
+ * highest peak memory observed for the tool so far. The observed peak memory is stored
+ * in the <code>.antex-peaks</code> file in the base directory of the project, so that
+ * later builds admit their first processes using the peaks of the previous builds.
+ * 
+ * @author Benedikt Meurer
+ */
+public class ToolScheduler {
+	private static String REFERENCE = "antex.scheduler";
+	private File file;
+	private long memory;
+	private Map peaks;
+	private int processes;
+	private Map running;
+	
+	/**
+	 * Allocate a new ToolScheduler, which keeps the observed peak memory in memory only.
+	 */
+	public ToolScheduler() {
+		this(null);
+	}
+	
+	/**
+	 * Allocate a new ToolScheduler, which stores the observed peak memory in <code>file</code>.
+	 * 
+	 * @param file the file to load and store the observed peak memory, or <code>null</code>.
+	 */
+	public ToolScheduler(File file) {
+		this.file = file;
+		this.memory = 0;
+		this.peaks = new HashMap();
+		this.processes = 0;
+		this.running = new HashMap();
+		Properties properties = (file != null) ? SystemUtils.loadProperties(file) : null;
+		if (properties != null) {
+			for (Iterator it = properties.keySet().iterator(); it.hasNext(); ) {
+				String tool = (String)it.next();
+				try {
+					this.peaks.put(tool, Long.valueOf(properties.getProperty(tool)));
+				}
+				catch (NumberFormatException e) {
+					// ignore invalid entries
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return the ToolScheduler for the <code>project</code>.
+	 * 
+	 * @param project the Ant project.
+	 * 
+	 * @return the ToolScheduler for the <code>project</code>.
+	 */
+	public static synchronized ToolScheduler getScheduler(Project project) {
+		ToolScheduler scheduler = (ToolScheduler)project.getReference(REFERENCE);
+		if (scheduler == null) {
+			scheduler = new ToolScheduler((project.getBaseDir() != null) ? new File(project.getBaseDir(), ".antex-peaks") : null);
+			project.addReference(REFERENCE, scheduler);
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Wait until a process of the <code>tool</code> may be started.
+	 * 
+	 * @param tool the tool name.
+	 * @param limit the limit for the tool, or <code>null</code>.
+	 * @param budget the memory budget in megabytes, or <code>0</code> if unlimited.
+	 * 
+	 * @return the estimated peak memory reserved for the process in megabytes, which must
+	 *         be passed to {@link #release(String, long, long)}.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized long acquire(String tool, ToolLimit limit, long budget) throws InterruptedException {
+		long estimate = getPeak(tool);
+		int maxProcesses = 0;
+		if (limit != null) {
+			estimate = Math.max(estimate, limit.getMemory());
+			maxProcesses = limit.getProcesses();
+		}
+		while ((maxProcesses > 0 && getRunning(tool) >= maxProcesses)
+				|| (budget > 0 && this.processes > 0 && this.memory + estimate > budget)) {
+			wait();
+		}
+		this.running.put(tool, Integer.valueOf(getRunning(tool) + 1));
+		this.processes++;
+		this.memory += estimate;
+		return estimate;
+	}
+	
+	/**
+	 * Release the resources of a terminated process of the <code>tool</code>.
+	 * 
+	 * @param tool the tool name.
+	 * @param estimate the estimated peak memory returned by {@link #acquire(String, ToolLimit, long)}.
+	 * @param peak the observed peak memory of the process in megabytes, or <code>0</code>.
+	 */
+	public synchronized void release(String tool, long estimate, long peak) {
+		this.running.put(tool, Integer.valueOf(getRunning(tool) - 1));
+		this.processes--;
+		this.memory -= estimate;
+		if (peak > getPeak(tool)) {
+			this.peaks.put(tool, Long.valueOf(peak));
+			if (this.file != null) {
+				Properties properties = new Properties();
+				for (Iterator it = this.peaks.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry entry = (Map.Entry)it.next();
+					properties.setProperty((String)entry.getKey(), entry.getValue().toString());
+				}
+				try {
+					SystemUtils.storeProperties(this.file, properties);
+				}
+				catch (BuildException e) {
+					// the peaks are only estimates, so the next build simply starts with older ones
+				}
+			}
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Return the highest peak memory observed for the <code>tool</code>.
+	 * 
+	 * @param tool the tool name.
+	 * 
+	 * @return the highest peak memory in megabytes, or <code>0</code>.
+	 */
+	private long getPeak(String tool) {
+		Long peak = (Long)this.peaks.get(tool);
+		return (peak != null) ? peak.longValue() : 0;
+	}
+	
+	/**
+	 * Return the number of running processes of the <code>tool</code>.
+	 * 
+	 * @param tool the tool name.
+	 * 
+	 * @return the number of running processes.
+	 */
+	private int getRunning(String tool) {
+		Integer count = (Integer)this.running.get(tool);
+		return (count != null) ? count.intValue() : 0;
+	}
+}
@@ -0,0 +1,205 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.util.Watchdog;
+
+/**
+ * Watchdog for tool processes, which kills the process and all its descendants once the
+ * timeout is reached, and samples the peak memory of the process tree while it runs.
+ * Killing descendants and sampling memory require the <code>ProcessHandle</code> API of
+ * Java 9 (and <code>/proc</code> for sampling); otherwise only the process itself is killed.
+ * 
+ * @author Benedikt Meurer
+ */
+public class ToolWatchdog extends ExecuteWatchdog {
+	private static long SAMPLE_INTERVAL = 1000;
+	private long peakMemory;
+	private Process process;
+	private Thread sampler;
+	
+	/**
+	 * Allocate a new ToolWatchdog.
+	 * 
+	 * @param timeout the timeout in milliseconds, or <code>0</code> for no timeout.
+	 */
+	public ToolWatchdog(long timeout) {
+		super((timeout > 0) ? timeout : Integer.MAX_VALUE);
+		this.peakMemory = 0;
+		this.process = null;
+		this.sampler = null;
+	}
+	
+	/**
+	 * Start watching the <code>process</code>.
+	 * 
+	 * @param process the process to watch.
+	 */
+	public synchronized void start(Process process) {
+		super.start(process);
+		this.process = process;
+		if (new File("/proc/self/status").isFile() && getPid(process) != null) {
+			this.sampler = new Thread("antex memory sampler") {
+				public void run() {
+					try {
+						while (!isInterrupted()) {
+							sampleMemory();
+							sleep(SAMPLE_INTERVAL);
+						}
+					}
+					catch (InterruptedException e) {
+						// done
+					}
+				}
+			};
+			this.sampler.setDaemon(true);
+			this.sampler.start();
+		}
+	}
+	
+	/**
+	 * Stop watching the process.
+	 */
+	public synchronized void stop() {
+		super.stop();
+		if (this.sampler != null) {
+			this.sampler.interrupt();
+			this.sampler = null;
+		}
+	}
+	
+	/**
+	 * Kill the descendants of the process and the process itself once the timeout is reached.
+	 * 
+	 * @param w the watchdog that timed out.
+	 */
+	public synchronized void timeoutOccured(Watchdog w) {
+		if (this.process != null && isWatching()) {
+			for (Iterator it = getDescendants(this.process).iterator(); it.hasNext(); ) {
+				invoke(it.next(), "java.lang.ProcessHandle", "destroyForcibly");
+			}
+		}
+		super.timeoutOccured(w);
+	}
+	
+	/**
+	 * Return the highest resident memory of the process tree observed so far.
+	 * 
+	 * @return the peak memory in megabytes, or <code>0</code> if unknown.
+	 */
+	public synchronized long getPeakMemory() {
+		return this.peakMemory / 1024;
+	}
+	
+	/**
+	 * Sample the resident memory of the process tree.
+	 */
+	private void sampleMemory() {
+		Process process;
+		synchronized (this) {
+			process = this.process;
+		}
+		if (process == null) {
+			return;
+		}
+		long memory = getResidentMemory(getPid(process));
+		for (Iterator it = getDescendants(process).iterator(); it.hasNext(); ) {
+			memory += getResidentMemory(invoke(it.next(), "java.lang.ProcessHandle", "pid"));
+		}
+		synchronized (this) {
+			this.peakMemory = Math.max(this.peakMemory, memory);
+		}
+	}
+	
+	/**
+	 * Return the resident memory of the process with the given <code>pid</code>.
+	 * 
+	 * @param pid the process id, or <code>null</code>.
+	 * 
+	 * @return the resident memory in kilobytes, or <code>0</code> if unknown.
+	 */
+	private static long getResidentMemory(Object pid) {
+		if (pid == null) {
+			return 0;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.substring(6).replaceAll("[^0-9]", ""));
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			// process terminated in the meantime
+		}
+		catch (NumberFormatException e) {
+			// unexpected format
+		}
+		return 0;
+	}
+	
+	/**
+	 * Return the process id of the <code>process</code>.
+	 * 
+	 * @param process the process.
+	 * 
+	 * @return the process id, or <code>null</code> if not available.
+	 */
+	private static Object getPid(Process process) {
+		return invoke(process, "java.lang.Process", "pid");
+	}
+	
+	/**
+	 * Return the handles of all descendants of the <code>process</code>.
+	 * 
+	 * @param process the process.
+	 * 
+	 * @return the list of process handles, empty if not available.
+	 */
+	private static List getDescendants(Process process) {
+		List descendants = new LinkedList();
+		Object stream = invoke(process, "java.lang.Process", "descendants");
+		if (stream != null) {
+			Iterator it = (Iterator)invoke(stream, "java.util.stream.BaseStream", "iterator");
+			while (it != null && it.hasNext()) {
+				descendants.add(it.next());
+			}
+		}
+		return descendants;
+	}
+	
+	/**
+	 * Invoke the public method <code>methodName</code> without parameters, declared by the
+	 * class <code>className</code>, on <code>object</code>.
+	 * 
+	 * @param object the object.
+	 * @param className the class or interface declaring the method.
+	 * @param methodName the method name.
+	 * 
+	 * @return the result of the method, or <code>null</code> if not available.
+	 */
+	private static Object invoke(Object object, String className, String methodName) {
+		try {
+			Method method = Class.forName(className).getMethod(methodName, new Class[0]);
+			return method.invoke(object, new Object[0]);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package de.unisiegen.informatik.antex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Environment;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Worker Ant task, which processes documents on behalf of antex tasks with the
+ * <code>workers</code> attribute (see {@link Coordinator}). The worker listens on a TCP port
+ * and processes the jobs of each connection one after another. Received input files are
+ * kept in a blob store below the work directory by their digest, so they are transferred
+ * only once, and the base directory of the documents is rebuilt from the blob store once
+ * per connection, so relative paths (i.e. to <code>../common</code>) work as on the
+ * coordinator. The worker can also be started as a standalone process using
+ * {@link #main(String[])}.
+ * 
+ * <p>Coordinators must know the shared secret of the worker, and may only pass on the task
+ * attributes and environment variables permitted by {@link RemoteProtocol}. By default
+ * the worker listens on the loopback interface only.</p>
+ * 
+ * @author Benedikt Meurer
+ */
+public class WorkerTask extends Task {
+	private String bind;
+	private int connections;
+	private File dir;
+	private int jobs;
+	private int port;
+	private String secret;
+	
+	/**
+	 * Initialize the worker task.
+	 */
+	public void init() throws BuildException {
+		super.init();
+		this.bind = "127.0.0.1";
+		this.connections = 0;
+		this.dir = null;
+		this.jobs = 0;
+		this.port = 0;
+		this.secret = null;
+	}
+	
+	/**
+	 * Return the address to listen on.
+	 * 
+	 * @return the address to listen on.
+	 */
+	public String getBind() {
+		return this.bind;
+	}
+	
+	/**
+	 * Set the address to listen on. Defaults to the loopback interface, so the address must
+	 * be set to accept coordinators from other hosts (i.e. <code>0.0.0.0</code> for all
+	 * interfaces).
+	 * 
+	 * @param bind the host name or IP address to listen on.
+	 */
+	public void setBind(String bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * Return the work directory.
+	 * 
+	 * @return the work directory, or <code>null</code> to use a temporary directory.
+	 */
+	public File getDir() {
+		return this.dir;
+	}
+	
+	/**
+	 * Set the work directory, which stores the received input files and the jobs. A temporary
+	 * work directory is removed when the JVM of the worker exits.
+	 * 
+	 * @param dir the work directory, or <code>null</code> to use a temporary directory.
+	 */
+	public void setDir(File dir) {
+		this.dir = dir;
+	}
+	
+	/**
+	 * Return the TCP port to listen on.
+	 * 
+	 * @return the TCP port, or <code>0</code> for any free port.
+	 */
+	public int getPort() {
+		return this.port;
+	}
+	
+	/**
+	 * Set the TCP port to listen on.
+	 * 
+	 * @param port the TCP port, or <code>0</code> for any free port.
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+	
+	/**
+	 * Return the shared secret.
+	 * 
+	 * @return the shared secret, or <code>null</code>.
+	 */
+	public String getSecret() {
+		return this.secret;
+	}
+	
+	/**
+	 * Set the shared secret, which coordinators must know to submit jobs (see the
+	 * <code>secret</code> attribute of the antex tasks).
+	 * 
+	 * @param secret the shared secret.
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+	
+	/**
+	 * Execute this worker task. Does not return unless the server socket fails.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	public void execute() throws BuildException {
+		super.execute();
+		if (getSecret() == null || getSecret().length() == 0) {
+			throw new BuildException("The secret attribute is required");
+		}
+		
+		// prepare the work directory
+		if (getDir() == null) {
+			final File dir = FileUtils.getFileUtils().createTempFile("antex", "worker", null, false);
+			if (!dir.mkdirs()) {
+				throw new BuildException("Failed to create work directory " + dir.getPath());
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread("antex worker cleanup") {
+				public void run() {
+					deleteDirectory(dir);
+				}
+			});
+			setDir(dir);
+		}
+		deleteDirectory(new File(getDir(), "jobs"));
+		deleteDirectory(new File(getDir(), "trees"));
+		if (!new File(getDir(), "blobs").mkdirs() && !new File(getDir(), "blobs").isDirectory()) {
+			throw new BuildException("Failed to create work directory " + getDir().getPath());
+		}
+		
+		// accept connections from coordinators
+		ServerSocket server;
+		try {
+			server = new ServerSocket(getPort(), 50, InetAddress.getByName(getBind()));
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to listen on " + getBind() + ":" + getPort(), e);
+		}
+		log("antex worker listening on " + getBind() + " port " + server.getLocalPort());
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				Thread thread = new Thread("antex worker " + socket.getRemoteSocketAddress()) {
+					public void run() {
+						executeConnection(socket);
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException("Failed to accept connection", e);
+		}
+		finally {
+			try {
+				server.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Process the jobs sent by a coordinator using the <code>socket</code>.
+	 * 
+	 * @param socket the connection to the coordinator.
+	 */
+	private void executeConnection(Socket socket) {
+		// the trees of the base directories sent on this connection
+		File treesDir;
+		synchronized (this) {
+			treesDir = new File(getDir(), "trees" + File.separator + (this.connections++));
+		}
+		Map trees = new HashMap();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			RemoteProtocol.authenticate(in, out, getSecret(), true);
+			while (true) {
+				String className;
+				try {
+					className = RemoteProtocol.readString(in);
+				}
+				catch (EOFException e) {
+					// coordinator is done
+					break;
+				}
+				executeJob(className, trees, treesDir, in, out);
+			}
+		}
+		catch (IOException e) {
+			log("Connection from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage(), Project.MSG_WARN);
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+			deleteDirectory(treesDir);
+		}
+	}
+	
+	/**
+	 * Receive and process a job for the task <code>className</code>, and send the result.
+	 * 
+	 * @param className the class name of the task.
+	 * @param trees the trees of the base directories received on this connection.
+	 * @param treesDir the directory for the trees of this connection.
+	 * @param in the input stream from the coordinator.
+	 * @param out the output stream to the coordinator.
+	 * 
+	 * @throws IOException in case of a communication error.
+	 */
+	private void executeJob(String className, Map trees, File treesDir, DataInputStream in, DataOutputStream out) throws IOException {
+		// receive the job description
+		Map attributes = new LinkedHashMap();
+		for (int count = in.readInt(); count > 0; --count) {
+			String name = RemoteProtocol.readString(in);
+			attributes.put(name, RemoteProtocol.readString(in));
+		}
+		String[] environment = new String[in.readInt()];
+		for (int i = 0; i < environment.length; ++i) {
+			environment[i] = RemoteProtocol.readString(in);
+		}
+		Integer rootId = Integer.valueOf(in.readInt());
+		Map manifest = null;
+		if (in.readBoolean()) {
+			manifest = new LinkedHashMap();
+			for (int count = in.readInt(); count > 0; --count) {
+				String path = checkPath(RemoteProtocol.readString(in));
+				manifest.put(path, checkDigest(RemoteProtocol.readString(in)));
+			}
+		}
+		String inputName = checkPath(RemoteProtocol.readString(in));
+		String outputName = checkPath(RemoteProtocol.readString(in));
+		if (outputName.indexOf('/') >= 0) {
+			throw new IOException("Invalid output file name " + outputName);
+		}
+		
+		// request the input files not in the blob store yet
+		File blobs = new File(getDir(), "blobs");
+		List missing = new LinkedList();
+		for (Iterator it = (manifest != null) ? manifest.values().iterator() : Collections.EMPTY_LIST.iterator(); it.hasNext(); ) {
+			String digest = (String)it.next();
+			if (!new File(blobs, digest).isFile() && !missing.contains(digest)) {
+				missing.add(digest);
+			}
+		}
+		out.writeInt(missing.size());
+		for (Iterator it = missing.iterator(); it.hasNext(); ) {
+			RemoteProtocol.writeString(out, (String)it.next());
+		}
+		out.flush();
+		for (Iterator it = missing.iterator(); it.hasNext(); ) {
+			String digest = (String)it.next();
+			File tmpfile = FileUtils.getFileUtils().createTempFile("tmp", ".blob", blobs, true);
+			try {
+				RemoteProtocol.readFile(in, tmpfile, digest);
+				tmpfile.setReadOnly();
+				if (!tmpfile.renameTo(new File(blobs, digest)) && !new File(blobs, digest).isFile()) {
+					throw new IOException("Failed to store " + digest);
+				}
+			}
+			finally {
+				tmpfile.delete();
+			}
+		}
+		
+		// build the tree of the base directory once per connection
+		File srcDir = (File)trees.get(rootId);
+		if (manifest != null) {
+			srcDir = new File(treesDir, rootId.toString());
+			deleteDirectory(srcDir);
+			createTree(manifest, srcDir);
+			trees.put(rootId, srcDir);
+		}
+		else if (srcDir == null) {
+			throw new IOException("Unknown base directory " + rootId);
+		}
+		
+		// process the job in a fresh job directory
+		File jobDir;
+		synchronized (this) {
+			jobDir = new File(getDir(), "jobs" + File.separator + (this.jobs++));
+		}
+		try {
+			File outfile = executeTask(className, attributes, environment, srcDir, jobDir, inputName, outputName);
+			String digest = SystemUtils.toHexString(SystemUtils.digestFile(outfile, false));
+			out.writeBoolean(true);
+			RemoteProtocol.writeString(out, digest);
+			RemoteProtocol.writeFile(out, outfile);
+		}
+		catch (BuildException e) {
+			log("Failed to process " + inputName + ": " + e.getMessage(), Project.MSG_VERBOSE);
+			out.writeBoolean(false);
+			RemoteProtocol.writeString(out, String.valueOf(e.getMessage()));
+			RemoteProtocol.writeString(out, (e instanceof ToolException) ? ((ToolException)e).getOutput() : "");
+		}
+		finally {
+			deleteDirectory(jobDir);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Create the files of the <code>manifest</code> below <code>srcDir</code> as links to
+	 * the blob store (or copies if the file system does not support links). The blobs are
+	 * read-only, so the tools cannot modify them through the links.
+	 * 
+	 * @param manifest the manifest of the input files (relative path to digest).
+	 * @param srcDir the directory for the tree.
+	 * 
+	 * @throws IOException in case of an error.
+	 */
+	private void createTree(Map manifest, File srcDir) throws IOException {
+		File blobs = new File(getDir(), "blobs");
+		for (Iterator it = manifest.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			File file = new File(srcDir, (String)entry.getKey());
+			File blob = new File(blobs, (String)entry.getValue());
+			if (!file.getParentFile().mkdirs() && !file.getParentFile().isDirectory()) {
+				throw new IOException("Failed to create directory " + file.getParentFile().getPath());
+			}
+			try {
+				Files.createLink(file.toPath(), blob.toPath());
+			}
+			catch (IOException e) {
+				FileUtils.getFileUtils().copyFile(blob, file);
+			}
+			catch (UnsupportedOperationException e) {
+				FileUtils.getFileUtils().copyFile(blob, file);
+			}
+		}
+	}
+	
+	/**
+	 * Run the task <code>className</code> on the input file <code>inputName</code> in the
+	 * tree <code>srcDir</code>, writing the output to <code>jobDir</code>.
+	 * 
+	 * @param className the class name of the task.
+	 * @param attributes the attributes of the task.
+	 * @param environment the environment variables as <code>key=value</code> strings.
+	 * @param srcDir the tree of the base directory.
+	 * @param jobDir the job directory.
+	 * @param inputName the relative path of the input file.
+	 * @param outputName the name of the output file.
+	 * 
+	 * @return the output file.
+	 * 
+	 * @throws BuildException in case of an error.
+	 */
+	private File executeTask(String className, Map attributes, String[] environment, File srcDir, File jobDir, String inputName, String outputName) throws BuildException {
+		File outDir = new File(jobDir, "out");
+		if (!outDir.mkdirs()) {
+			throw new BuildException("Failed to create " + outDir.getPath());
+		}
+		
+		// only the antex tasks may be run by coordinators
+		AbstractTask task;
+		try {
+			Class taskClass = Class.forName(className);
+			if (!AbstractTask.class.isAssignableFrom(taskClass) || !taskClass.getName().startsWith(AbstractTask.class.getPackage().getName() + ".")) {
+				throw new BuildException("Unsupported task " + className);
+			}
+			task = (AbstractTask)taskClass.getDeclaredConstructor().newInstance();
+		}
+		catch (ClassNotFoundException e) {
+			throw new BuildException("Unsupported task " + className, e);
+		}
+		catch (InstantiationException e) {
+			throw new BuildException("Unsupported task " + className, e);
+		}
+		catch (IllegalAccessException e) {
+			throw new BuildException("Unsupported task " + className, e);
+		}
+		catch (InvocationTargetException e) {
+			throw new BuildException("Unsupported task " + className, e);
+		}
+		catch (NoSuchMethodException e) {
+			throw new BuildException("Unsupported task " + className, e);
+		}
+		
+		// configure the task like the coordinator's task, but for the job directory
+		task.setProject(getProject());
+		task.setOwningTarget(getOwningTarget());
+		task.setTaskName(getTaskName());
+		task.init();
+		IntrospectionHelper helper = IntrospectionHelper.getHelper(getProject(), task.getClass());
+		for (Iterator it = attributes.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry = (Map.Entry)it.next();
+			if (!RemoteProtocol.isPermittedAttribute((String)entry.getKey())) {
+				throw new BuildException("Attribute " + entry.getKey() + " is not permitted on workers");
+			}
+			helper.setAttribute(getProject(), task, (String)entry.getKey(), (String)entry.getValue());
+		}
+		for (int i = 0; i < environment.length; ++i) {
+			int equalsIndex = environment[i].indexOf('=');
+			if (equalsIndex <= 0 || !RemoteProtocol.isPermittedVariable(environment[i].substring(0, equalsIndex))) {
+				throw new BuildException("Environment variable " + ((equalsIndex > 0) ? environment[i].substring(0, equalsIndex) : environment[i]) + " is not permitted on workers");
+			}
+			Environment.Variable var = new Environment.Variable();
+			var.setKey(environment[i].substring(0, equalsIndex));
+			var.setValue(environment[i].substring(equalsIndex + 1));
+			task.addEnv(var);
+		}
+		File outfile = new File(outDir, outputName);
+		task.setFailonerror(true);
+		task.setFile(new File(srcDir, inputName));
+		task.setDestdir(outDir);
+		if (task instanceof AbstractSimpleTask) {
+			((AbstractSimpleTask)task).setTofile(outfile);
+		}
+		task.execute();
+		if (!outfile.isFile()) {
+			throw new BuildException("Failed to produce " + outputName);
+		}
+		return outfile;
+	}
+	
+	/**
+	 * Delete the <code>directory</code> and its contents.
+	 * 
+	 * @param directory the directory.
+	 */
+	private void deleteDirectory(File directory) {
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; ++i) {
+				if (children[i].isDirectory()) {
+					deleteDirectory(children[i]);
+				}
+				else if (!children[i].delete()) {
+					log("Failed to delete " + children[i].getPath(), Project.MSG_WARN);
+				}
+			}
+		}
+		if (directory.exists() && !directory.delete()) {
+			log("Failed to delete " + directory.getPath(), Project.MSG_WARN);
+		}
+	}
+	
+	/**
+	 * Check that <code>path</code> is a relative path below the job directory.
+	 * 
+	 * @param path the relative path received from the coordinator.
+	 * 
+	 * @return the <code>path</code>.
+	 * 
+	 * @throws IOException if the <code>path</code> is invalid.
+	 */
+	private static String checkPath(String path) throws IOException {
+		String[] segments = path.split("/");
+		for (int i = 0; i < segments.length; ++i) {
+			if (segments[i].length() == 0 || segments[i].equals(".") || segments[i].equals("..") || segments[i].indexOf('\\') >= 0) {
+				throw new IOException("Invalid path " + path);
+			}
+		}
+		return path;
+	}
+	
+	/**
+	 * Check that <code>digest</code> is a hex digest.
+	 * 
+	 * @param digest the digest received from the coordinator.
+	 * 
+	 * @return the <code>digest</code>.
+	 * 
+	 * @throws IOException if the <code>digest</code> is invalid.
+	 */
+	private static String checkDigest(String digest) throws IOException {
+		if (!digest.matches("[0-9a-f]+")) {
+			throw new IOException("Invalid digest " + digest);
+		}
+		return digest;
+	}
+	
+	/**
+	 * Run a worker as a standalone process, i.e. for local workers using loopback sockets.
+	 * The shared secret is taken from the <code>ANTEX_WORKER_SECRET</code> environment
+	 * variable (so that it does not show up in the process list).
+	 * 
+	 * <pre>java de.unisiegen.informatik.antex.WorkerTask [port [dir [bind]]]</pre>
+	 * 
+	 * @param args the optional port, work directory and address to listen on.
+	 */
+	public static void main(String[] args) {
+		Project project = new Project();
+		DefaultLogger logger = new DefaultLogger();
+		logger.setErrorPrintStream(System.err);
+		logger.setOutputPrintStream(System.out);
+		logger.setMessageOutputLevel(Project.MSG_INFO);
+		project.addBuildListener(logger);
+		project.init();
+		project.setBaseDir(new File(".").getAbsoluteFile());
+		
+		WorkerTask worker = new WorkerTask();
+		worker.setProject(project);
+		worker.setTaskName("worker");
+		worker.init();
+		worker.setSecret(System.getenv("ANTEX_WORKER_SECRET"));
+		try {
+			if (args.length > 0) {
+				worker.setPort(Integer.parseInt(args[0]));
+			}
+			if (args.length > 1) {
+				worker.setDir(new File(args[1]).getAbsoluteFile());
+			}
+			if (args.length > 2) {
+				worker.setBind(args[2]);
+			}
+			worker.execute();
+		}
+		catch (NumberFormatException e) {
+			System.err.println("Usage: java " + WorkerTask.class.getName() + " [port [dir [bind]]]");
+			System.exit(2);
+		}
+		catch (BuildException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.launch.AntMain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Loopback tests for the {@link Coordinator} and the antex workers ({@link WorkerTask}),
+ * using a fake <code>pdflatex</code> that, like pdfTeX, derives the trailer ID of its
+ * output from the output path unless <code>\pdftrailerid</code> is given.
+ * 
+ * @author Benedikt Meurer
+ */
+public class CoordinatorTest {
+	private static String[] DOCUMENTS = new String[] { "a", "b", "c", "d" };
+	private static String FAKE_PDFLATEX = "#!/bin/sh\n"
+		+ "outdir=.; job=; arg=\n"
+		+ "while [ $# -gt 0 ]; do\n"
+		+ "  case \"$1\" in\n"
+		+ "    -output-directory) outdir=\"$2\"; shift;;\n"
+		+ "    -jobname=*) job=\"${1#-jobname=}\";;\n"
+		+ "    -*) ;;\n"
+		+ "    *) arg=\"$1\";;\n"
+		+ "  esac\n"
+		+ "  shift\n"
+		+ "done\n"
+		+ "case \"$arg\" in\n"
+		+ "  \\\\*) file=$(printf '%s' \"$arg\" | sed 's/.*\\\\input{\\([^}]*\\)}.*/\\1/')\n"
+		+ "       id=$(printf '%s' \"$arg\" | sed -n 's/.*\\\\pdftrailerid{\\([^}]*\\)}.*/\\1/p');;\n"
+		+ "  *) file=\"$arg\"; id=;;\n"
+		+ "esac\n"
+		+ "[ -n \"$job\" ] || job=$(basename \"$file\" .tex)\n"
+		+ "[ -n \"$id\" ] || id=\"$outdir/$job.pdf\"\n"
+		+ "if [ -n \"$ANTEX_TEST_HANG\" ] && mkdir \"$ANTEX_TEST_HANG\" 2>/dev/null; then\n"
+		+ "  while kill -0 $PPID 2>/dev/null; do sleep 0.1; done\n"
+		+ "  exit 1\n"
+		+ "fi\n"
+		+ "[ -z \"$ANTEX_TEST_DELAY\" ] || sleep \"$ANTEX_TEST_DELAY\"\n"
+		+ "{ echo \"%PDF trailer $id $SOURCE_DATE_EPOCH\"; cat \"$file\"\n"
+		+ "  sed -n 's/.*usepackage{\\([^}]*\\)}.*/\\1.sty/p' \"$file\" | while read p; do cat \"$p\"; done\n"
+		+ "} > \"$outdir/$job.pdf\" || exit 1\n"
+		+ ": > \"$outdir/$job.log\"; : > \"$outdir/$job.aux\"\n"
+		+ "printf 'PWD %s\\nINPUT %s\\nOUTPUT %s\\n' \"$(pwd)\" \"$file\" \"$outdir/$job.log\" > \"$outdir/$job.fls\"\n";
+	private static String SECRET = "loopback";
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File bin;
+	private String classpath;
+	private List workers;
+	
+	/**
+	 * Create the fake pdflatex and the documents. Each document uses a package from a
+	 * sibling directory, and the documents a and b share an identical file.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		this.bin = this.folder.newFolder("bin");
+		File pdflatex = new File(this.bin, "pdflatex");
+		write(pdflatex, FAKE_PDFLATEX);
+		assertTrue(pdflatex.setExecutable(true));
+		write(new File(this.folder.getRoot(), "src/common/macros.sty"), "\\newcommand{\\antex}{antex}\n");
+		for (int i = 0; i < DOCUMENTS.length; ++i) {
+			write(new File(this.folder.getRoot(), "src/" + DOCUMENTS[i] + "/" + DOCUMENTS[i] + ".tex"),
+					"\\documentclass{article}\n\\usepackage{../common/macros}\n\\begin{document}\n" + DOCUMENTS[i] + "\n\\end{document}\n");
+		}
+		write(new File(this.folder.getRoot(), "src/a/logo.txt"), "logo\n");
+		write(new File(this.folder.getRoot(), "src/b/logo.txt"), "logo\n");
+		write(new File(this.folder.getRoot(), "build.xml"), "<project default=\"local\">\n"
+				+ "  <taskdef name=\"latex\" classname=\"" + LatexTask.class.getName() + "\"/>\n"
+				+ "  <target name=\"local\">\n"
+				+ "    <mkdir dir=\"out-local\"/>\n"
+				+ "    <latex destdir=\"out-local\" reproducible=\"true\">\n"
+				+ "      <env key=\"SOURCE_DATE_EPOCH\" value=\"0\"/>\n"
+				+ "      <fileset dir=\"src\" includes=\"*/*.tex\"/>\n"
+				+ "    </latex>\n"
+				+ "  </target>\n"
+				+ "  <target name=\"remote\">\n"
+				+ "    <latex destdir=\"out-remote\" reproducible=\"true\" cleanup=\"true\" workers=\"${workers}\" secret=\"${secret}\">\n"
+				+ "      <env key=\"SOURCE_DATE_EPOCH\" value=\"0\"/>\n"
+				+ "      <fileset dir=\"src\" includes=\"*/*.tex\"/>\n"
+				+ "    </latex>\n"
+				+ "  </target>\n"
+				+ "</project>\n");
+		this.classpath = getLocation(Project.class) + File.pathSeparator + getLocation(AntMain.class) + File.pathSeparator + getLocation(LatexTask.class);
+		this.workers = new ArrayList();
+	}
+	
+	/**
+	 * Kill the workers.
+	 */
+	@After
+	public void tearDown() {
+		for (Iterator it = this.workers.iterator(); it.hasNext(); ) {
+			((Process)it.next()).destroy();
+		}
+	}
+	
+	/**
+	 * A worker killed while processing a document is replaced by the remaining worker, and
+	 * the documents built by the workers are byte-identical to the local build. The temporary
+	 * files left in the destdir by earlier local builds are cleaned up.
+	 */
+	@Test
+	public void testKilledWorker() throws Exception {
+		File hang = new File(this.folder.getRoot(), "hang");
+		File dirA = new File(this.folder.getRoot(), "worker-a");
+		File dirB = new File(this.folder.getRoot(), "worker-b");
+		Process workerA = startWorker(dirA, "ANTEX_TEST_HANG", hang.getPath());
+		int portA = getPort(workerA);
+		Process workerB = startWorker(dirB, "ANTEX_TEST_DELAY", "0.5");
+		int portB = getPort(workerB);
+		File aux = new File(this.folder.getRoot(), "out-remote/a.aux");
+		write(aux, "");
+		
+		// run the remote build, and kill worker A once it processes a document
+		Process remote = startAnt("remote", false, new String[] {
+			"-Dworkers=127.0.0.1:" + portA + ",127.0.0.1:" + portB, "-Dsecret=" + SECRET
+		});
+		for (int i = 0; i < 300 && !hang.exists(); ++i) {
+			Thread.sleep(100);
+		}
+		assertTrue("worker A did not start a document", hang.exists());
+		workerA.destroyForcibly().waitFor();
+		String output = waitFor(remote);
+		assertEquals(output, 0, remote.exitValue());
+		assertTrue(output, output.indexOf("failed: Connection closed") >= 0);
+		assertTrue(!aux.exists());
+		
+		// the same documents built locally
+		Process local = startAnt("local", true, new String[0]);
+		output = waitFor(local);
+		assertEquals(output, 0, local.exitValue());
+		for (int i = 0; i < DOCUMENTS.length; ++i) {
+			byte[] localPdf = Files.readAllBytes(new File(this.folder.getRoot(), "out-local/" + DOCUMENTS[i] + ".pdf").toPath());
+			byte[] remotePdf = Files.readAllBytes(new File(this.folder.getRoot(), "out-remote/" + DOCUMENTS[i] + ".pdf").toPath());
+			assertArrayEquals(DOCUMENTS[i], localPdf, remotePdf);
+			assertTrue(new String(remotePdf, "UTF-8").indexOf("\\newcommand{\\antex}") >= 0);
+		}
+		
+		// worker B received every distinct file once
+		Set digests = new HashSet();
+		collectDigests(new File(this.folder.getRoot(), "src"), digests);
+		assertEquals(new HashSet(Arrays.asList(new File(dirB, "blobs").list())), digests);
+	}
+	
+	/**
+	 * Coordinators with the wrong secret are rejected.
+	 */
+	@Test
+	public void testWrongSecret() throws Exception {
+		Process worker = startWorker(new File(this.folder.getRoot(), "worker"), "ANTEX_TEST_DELAY", "0");
+		Process remote = startAnt("remote", false, new String[] {
+			"-Dworkers=127.0.0.1:" + getPort(worker), "-Dsecret=wrong"
+		});
+		String output = waitFor(remote);
+		assertTrue(output, remote.exitValue() != 0);
+		assertTrue(output, output.indexOf("Authentication failed") >= 0);
+		assertTrue(!new File(this.folder.getRoot(), "out-remote").exists());
+	}
+	
+	/**
+	 * Start a worker JVM using the fake pdflatex.
+	 * 
+	 * @param dir the work directory.
+	 * @param name the name of an additional environment variable.
+	 * @param value the value of the additional environment variable.
+	 * 
+	 * @return the worker process.
+	 */
+	private Process startWorker(File dir, String name, String value) throws IOException {
+		dir.mkdirs();
+		ProcessBuilder builder = new ProcessBuilder(new String[] {
+			getJava(), "-cp", this.classpath, WorkerTask.class.getName(), "0", dir.getPath()
+		});
+		builder.environment().put("ANTEX_WORKER_SECRET", SECRET);
+		builder.environment().put("PATH", this.bin.getPath() + File.pathSeparator + System.getenv("PATH"));
+		builder.environment().put(name, value);
+		builder.directory(dir);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		this.workers.add(process);
+		return process;
+	}
+	
+	/**
+	 * Return the port of the <code>worker</code>, and keep draining its output.
+	 * 
+	 * @param worker the worker process.
+	 * 
+	 * @return the port.
+	 */
+	private static int getPort(Process worker) throws Exception {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(worker.getInputStream()));
+		final LinkedBlockingQueue ports = new LinkedBlockingQueue();
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					Pattern pattern = Pattern.compile("listening on .* port (\\d+)");
+					String line;
+					while ((line = reader.readLine()) != null) {
+						Matcher matcher = pattern.matcher(line);
+						if (matcher.find()) {
+							ports.add(Integer.valueOf(matcher.group(1)));
+						}
+					}
+				}
+				catch (IOException e) {
+					// worker terminated
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Integer port = (Integer)ports.poll(30, TimeUnit.SECONDS);
+		assertTrue("worker did not start", port != null);
+		return port.intValue();
+	}
+	
+	/**
+	 * Start an Ant JVM running the <code>target</code> of the test build file.
+	 * 
+	 * @param target the target.
+	 * @param tools <code>true</code> to put the fake pdflatex on the path.
+	 * @param args the additional arguments.
+	 * 
+	 * @return the Ant process.
+	 */
+	private Process startAnt(String target, boolean tools, String[] args) throws IOException {
+		List command = new ArrayList(Arrays.asList(new String[] {
+			getJava(), "-cp", this.classpath, "org.apache.tools.ant.Main", "-f", new File(this.folder.getRoot(), "build.xml").getPath()
+		}));
+		command.addAll(Arrays.asList(args));
+		command.add(target);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		if (tools) {
+			builder.environment().put("PATH", this.bin.getPath() + File.pathSeparator + System.getenv("PATH"));
+		}
+		builder.redirectErrorStream(true);
+		return builder.start();
+	}
+	
+	/**
+	 * Wait for the <code>process</code> to terminate.
+	 * 
+	 * @param process the process.
+	 * 
+	 * @return the output of the process.
+	 */
+	private static String waitFor(Process process) throws Exception {
+		StringBuffer output = new StringBuffer();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			output.append(line).append('\n');
+		}
+		assertTrue(output.toString(), process.waitFor(60, TimeUnit.SECONDS));
+		return output.toString();
+	}
+	
+	/**
+	 * Collect the digests of the files below <code>directory</code>.
+	 * 
+	 * @param directory the directory.
+	 * @param digests the set of digests.
+	 */
+	private static void collectDigests(File directory, Set digests) {
+		File[] children = directory.listFiles();
+		for (int i = 0; i < children.length; ++i) {
+			if (children[i].isDirectory()) {
+				collectDigests(children[i], digests);
+			}
+			else {
+				digests.add(SystemUtils.toHexString(SystemUtils.digestFile(children[i], false)));
+			}
+		}
+	}
+	
+	/**
+	 * Write the <code>contents</code> to <code>file</code>.
+	 * 
+	 * @param file the file.
+	 * @param contents the contents.
+	 */
+	private static void write(File file, String contents) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), contents.getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Return the location (jar file or class directory) of the <code>clazz</code>.
+	 * 
+	 * @param clazz the class.
+	 * 
+	 * @return the location.
+	 */
+	private static String getLocation(Class clazz) throws Exception {
+		return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+	}
+	
+	/**
+	 * Return the java executable of this JVM.
+	 * 
+	 * @return the java executable.
+	 */
+	private static String getJava() {
+		return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+	}
+}
@@ -0,0 +1,226 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.launch.AntMain;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link LatexTask}, using a fake <code>pdflatex</code> that records its
+ * runs, writes the recorder file only if asked to, fails for documents containing
+ * <code>\fail</code> and asks for one more run after the first final (non-draft) run of
+ * documents containing <code>\rerun</code>.
+ * 
+ * @author Benedikt Meurer
+ */
+public class LatexTaskTest {
+	private static String FAKE_PDFLATEX = "#!/bin/sh\n"
+		+ "outdir=.; draft=; recorder=; file=\n"
+		+ "while [ $# -gt 0 ]; do\n"
+		+ "  case \"$1\" in\n"
+		+ "    -output-directory) outdir=\"$2\"; shift;;\n"
+		+ "    -draftmode) draft=\" draft\";;\n"
+		+ "    -recorder) recorder=1;;\n"
+		+ "    -*) ;;\n"
+		+ "    *) file=\"$1\";;\n"
+		+ "  esac\n"
+		+ "  shift\n"
+		+ "done\n"
+		+ "job=$(basename \"$file\" .tex)\n"
+		+ "echo \"$job$draft\" >> \"$ANTEX_TEST_CALLS\"\n"
+		+ "! grep -q '\\\\fail' \"$file\" || exit 1\n"
+		+ "inputs=$(sed -n 's/.*\\\\input{\\([^}]*\\)}.*/\\1/p' \"$file\")\n"
+		+ "if [ -z \"$draft\" ] && grep -q '\\\\rerun' \"$file\" && mkdir \"$outdir/$job.rerun\" 2>/dev/null; then\n"
+		+ "  echo 'LaTeX Warning: Label(s) may have changed. Rerun to get cross-references right.' > \"$outdir/$job.log\"\n"
+		+ "else\n"
+		+ "  : > \"$outdir/$job.log\"\n"
+		+ "fi\n"
+		+ ": > \"$outdir/$job.aux\"\n"
+		+ "[ -n \"$draft\" ] || cat \"$file\" $inputs > \"$outdir/$job.pdf\"\n"
+		+ "[ -z \"$recorder\" ] || { echo \"PWD $(pwd)\"; for f in \"$file\" $inputs; do echo \"INPUT $f\"; done; echo \"OUTPUT $outdir/$job.log\"; } > \"$outdir/$job.fls\"\n";
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File bin;
+	private File calls;
+	private String classpath;
+	
+	/**
+	 * Create the fake pdflatex.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		this.bin = this.folder.newFolder("bin");
+		File pdflatex = new File(this.bin, "pdflatex");
+		write(pdflatex, FAKE_PDFLATEX);
+		assertTrue(pdflatex.setExecutable(true));
+		this.calls = new File(this.folder.getRoot(), "calls");
+		this.classpath = getLocation(Project.class) + File.pathSeparator + getLocation(AntMain.class) + File.pathSeparator + getLocation(LatexTask.class);
+	}
+	
+	/**
+	 * The final run in draft mode is repeated if it asks for another run.
+	 */
+	@Test
+	public void testDraftmodeFinalRerun() throws Exception {
+		write(new File(this.folder.getRoot(), "src/a.tex"), "\\rerun\n");
+		write(new File(this.folder.getRoot(), "src/b.tex"), "b\n");
+		runAnt("draftmode=\"true\"");
+		assertEquals(Arrays.asList(new String[] {
+			"a", "a", "a draft", "a draft", "b", "b draft", "b draft"
+		}), readCalls());
+	}
+	
+	/**
+	 * When keeping going, the documents processed successfully by the previous run are
+	 * skipped unless their inputs changed.
+	 */
+	@Test
+	public void testJournal() throws Exception {
+		File chapter = write(new File(this.folder.getRoot(), "src/chapter.txt"), "chapter\n");
+		write(new File(this.folder.getRoot(), "src/a.tex"), "\\input{chapter.txt}\n");
+		File b = write(new File(this.folder.getRoot(), "src/b.tex"), "\\fail\n");
+		File journal = new File(this.folder.getRoot(), "out/.antex-journal");
+		String output = runAnt("failonerror=\"false\"");
+		assertTrue(output, output.indexOf("1 of 2 files failed") >= 0);
+		assertEquals(Arrays.asList(new String[] { "a", "a", "b" }), readCalls());
+		assertTrue(journal.exists());
+		
+		// only the failed document is processed again
+		output = runAnt("failonerror=\"false\"");
+		assertTrue(output, output.indexOf("1 of 2 files failed") >= 0);
+		assertEquals(Arrays.asList(new String[] { "b" }), readCalls());
+		
+		// unless an input of the successful document changed
+		write(chapter, "chapter 2\n");
+		runAnt("failonerror=\"false\"");
+		assertEquals(Arrays.asList(new String[] { "a", "a", "b" }), readCalls());
+		
+		// the journal is removed once all documents succeeded
+		write(b, "b\n");
+		output = runAnt("failonerror=\"false\"");
+		assertTrue(output, output.indexOf("files failed") < 0);
+		assertEquals(Arrays.asList(new String[] { "b", "b" }), readCalls());
+		assertTrue(!journal.exists());
+		runAnt("failonerror=\"false\"");
+		assertEquals(Arrays.asList(new String[] { "a", "a", "b", "b" }), readCalls());
+	}
+	
+	/**
+	 * The inputs are only recorded if they are needed by the next build.
+	 */
+	@Test
+	public void testRecorder() throws Exception {
+		write(new File(this.folder.getRoot(), "src/a.tex"), "a\n");
+		File fls = new File(this.folder.getRoot(), "out/a.fls");
+		runAnt("");
+		assertTrue(!fls.exists());
+		runAnt("incremental=\"true\"");
+		assertTrue(fls.exists());
+		assertTrue(fls.delete());
+		runAnt("failonerror=\"false\"");
+		assertTrue(fls.exists());
+	}
+	
+	/**
+	 * Run the latex task on the LaTeX files in <code>src</code> with the output files in
+	 * <code>out</code>.
+	 * 
+	 * @param attributes the additional attributes of the latex task.
+	 * 
+	 * @return the output of Ant.
+	 */
+	private String runAnt(String attributes) throws Exception {
+		File buildFile = new File(this.folder.getRoot(), "build.xml");
+		write(buildFile, "<project default=\"latex\">\n"
+				+ "  <taskdef name=\"latex\" classname=\"" + LatexTask.class.getName() + "\"/>\n"
+				+ "  <target name=\"latex\">\n"
+				+ "    <mkdir dir=\"out\"/>\n"
+				+ "    <latex destdir=\"out\" " + attributes + ">\n"
+				+ "      <fileset dir=\"src\" includes=\"*.tex\"/>\n"
+				+ "    </latex>\n"
+				+ "  </target>\n"
+				+ "</project>\n");
+		ProcessBuilder builder = new ProcessBuilder(new String[] {
+			getJava(), "-cp", this.classpath, "org.apache.tools.ant.Main", "-f", buildFile.getPath()
+		});
+		builder.environment().put("ANTEX_TEST_CALLS", this.calls.getPath());
+		builder.environment().put("PATH", this.bin.getPath() + File.pathSeparator + System.getenv("PATH"));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		StringBuffer output = new StringBuffer();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			output.append(line).append('\n');
+		}
+		assertTrue(output.toString(), process.waitFor(60, TimeUnit.SECONDS));
+		assertEquals(output.toString(), 0, process.exitValue());
+		return output.toString();
+	}
+	
+	/**
+	 * Return and reset the runs recorded by the fake pdflatex.
+	 * 
+	 * @return the sorted list of runs, each consisting of the base name and whether it was a
+	 *         draft run.
+	 */
+	private List readCalls() throws IOException {
+		List calls = new ArrayList();
+		if (this.calls.exists()) {
+			calls.addAll(Files.readAllLines(this.calls.toPath()));
+			assertTrue(this.calls.delete());
+		}
+		Collections.sort(calls);
+		return calls;
+	}
+	
+	/**
+	 * Write the <code>contents</code> to <code>file</code>.
+	 * 
+	 * @param file the file.
+	 * @param contents the contents.
+	 * 
+	 * @return the file.
+	 */
+	private static File write(File file, String contents) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), contents.getBytes("UTF-8"));
+		return file;
+	}
+	
+	/**
+	 * Return the location (jar file or class directory) of the <code>clazz</code>.
+	 * 
+	 * @param clazz the class.
+	 * 
+	 * @return the location.
+	 */
+	private static String getLocation(Class clazz) throws Exception {
+		return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+	}
+	
+	/**
+	 * Return the java executable of this JVM.
+	 * 
+	 * @return the java executable.
+	 */
+	private static String getJava() {
+		return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+	}
+}
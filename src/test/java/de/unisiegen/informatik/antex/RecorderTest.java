@@ -0,0 +1,107 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link Recorder}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class RecorderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File base;
+	private File chapter;
+	private File document;
+	private File style;
+	
+	/**
+	 * Create a document with a chapter below the base directory and a style file outside.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		this.base = this.folder.newFolder("doc");
+		this.document = write(new File(this.base, "doc.tex"), "\\input{chapter}\n");
+		this.chapter = write(new File(this.base, "chapter.tex"), "chapter\n");
+		this.style = write(new File(this.folder.getRoot(), "texmf/style.sty"), "style\n");
+	}
+	
+	/**
+	 * The recorder file lists the inputs relative to the recorded working directory, and
+	 * files also written by the run are not inputs.
+	 */
+	@Test
+	public void testReadInputs() throws Exception {
+		File fls = write(new File(this.base, "out/doc.fls"), "PWD " + this.base.getPath() + "\n"
+				+ "INPUT doc.tex\n"
+				+ "INPUT ./chapter.tex\n"
+				+ "INPUT " + this.style.getPath() + "\n"
+				+ "INPUT out/doc.aux\n"
+				+ "OUTPUT out/doc.aux\n"
+				+ "OUTPUT out/doc.log\n");
+		List inputs = Recorder.readInputs(fls);
+		assertEquals(Arrays.asList(new File[] { this.document, this.chapter, this.style }), inputs);
+		assertNull(Recorder.readInputs(new File(this.base, "missing.fls")));
+	}
+	
+	/**
+	 * Inputs below the base directory are compared by contents, others by modification time.
+	 */
+	@Test
+	public void testFindChange() throws Exception {
+		List inputs = Arrays.asList(new File[] { this.document, this.chapter, this.style });
+		Properties state = Recorder.computeState(inputs, this.base);
+		assertEquals(3, state.size());
+		assertTrue(state.containsKey("chapter.tex"));
+		assertTrue(state.containsKey(this.style.getPath()));
+		assertNull(Recorder.findChange(state, this.base, null));
+		
+		// touching a file below the base directory is no change
+		assertTrue(this.chapter.setLastModified(this.chapter.lastModified() - 10000));
+		assertNull(Recorder.findChange(state, this.base, null));
+		
+		// changing its contents is (even with the same size)
+		write(this.chapter, "CHAPTER\n");
+		assertEquals("chapter.tex", Recorder.findChange(state, this.base, null));
+		assertNull(Recorder.findChange(state, this.base, Collections.singleton("chapter.tex")));
+		state = Recorder.computeState(inputs, this.base);
+		
+		// files outside the base directory are compared by modification time
+		assertTrue(this.style.setLastModified(this.style.lastModified() - 10000));
+		assertEquals(this.style.getPath(), Recorder.findChange(state, this.base, null));
+		state = Recorder.computeState(inputs, this.base);
+		
+		// removed inputs are changes
+		assertTrue(this.chapter.delete());
+		assertEquals("chapter.tex", Recorder.findChange(state, this.base, null));
+	}
+	
+	/**
+	 * Write the <code>contents</code> to <code>file</code>.
+	 * 
+	 * @param file the file.
+	 * @param contents the contents.
+	 * 
+	 * @return the file.
+	 */
+	private static File write(File file, String contents) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), contents.getBytes("UTF-8"));
+		return file;
+	}
+}
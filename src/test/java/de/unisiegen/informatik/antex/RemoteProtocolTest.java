@@ -0,0 +1,130 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link RemoteProtocol}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class RemoteProtocolTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Received file contents must match the announced digest.
+	 */
+	@Test
+	public void testReadFileVerifiesDigest() throws Exception {
+		File source = this.folder.newFile("source");
+		Files.write(source.toPath(), "\\documentclass{article}\n".getBytes("UTF-8"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		RemoteProtocol.writeFile(out, source);
+		out.flush();
+		
+		String digest = SystemUtils.toHexString(SystemUtils.digestFile(source, false));
+		File file = new File(this.folder.getRoot(), "file");
+		RemoteProtocol.readFile(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), file, digest);
+		assertTrue(SystemUtils.contentEquals(source, file));
+		try {
+			RemoteProtocol.readFile(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), file, digest.replace(digest.charAt(0), digest.charAt(0) == '0' ? '1' : '0'));
+			fail("Digest mismatch not detected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Peers with the same secret accept each other, peers with different secrets do not.
+	 */
+	@Test
+	public void testAuthenticate() throws Exception {
+		assertTrue(authenticate("secret", "secret"));
+		assertFalse(authenticate("secret", "other"));
+	}
+	
+	/**
+	 * Only the allowlisted attributes and variables may be set by coordinators.
+	 */
+	@Test
+	public void testPermitted() {
+		assertTrue(RemoteProtocol.isPermittedAttribute("pdf"));
+		assertTrue(RemoteProtocol.isPermittedAttribute("reproducible"));
+		assertFalse(RemoteProtocol.isPermittedAttribute("workers"));
+		assertFalse(RemoteProtocol.isPermittedAttribute("destdir"));
+		assertTrue(RemoteProtocol.isPermittedVariable("SOURCE_DATE_EPOCH"));
+		assertFalse(RemoteProtocol.isPermittedVariable("LD_PRELOAD"));
+		assertFalse(RemoteProtocol.isPermittedVariable("shell_escape"));
+		assertFalse(RemoteProtocol.isPermittedVariable("PATH"));
+	}
+	
+	/**
+	 * Authenticate a coordinator using <code>coordinatorSecret</code> with a worker using
+	 * <code>workerSecret</code> over a loopback connection.
+	 * 
+	 * @param coordinatorSecret the secret of the coordinator.
+	 * @param workerSecret the secret of the worker.
+	 * 
+	 * @return <code>true</code> if both sides accepted the other one.
+	 */
+	private static boolean authenticate(String coordinatorSecret, final String workerSecret) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final boolean[] accepted = new boolean[1];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					try {
+						RemoteProtocol.authenticate(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+								new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), workerSecret, true);
+						accepted[0] = true;
+					}
+					finally {
+						socket.close();
+					}
+				}
+				catch (IOException e) {
+					accepted[0] = false;
+				}
+			}
+		};
+		thread.start();
+		boolean result;
+		Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		try {
+			RemoteProtocol.authenticate(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+					new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), coordinatorSecret, false);
+			result = true;
+		}
+		catch (IOException e) {
+			result = false;
+		}
+		finally {
+			socket.close();
+		}
+		thread.join();
+		server.close();
+		return result && accepted[0];
+	}
+}
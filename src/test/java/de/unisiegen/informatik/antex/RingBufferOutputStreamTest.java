@@ -0,0 +1,63 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RingBufferOutputStream}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class RingBufferOutputStreamTest {
+	/**
+	 * Output that fits into the buffer is kept completely.
+	 */
+	@Test
+	public void testShortOutput() throws Exception {
+		RingBufferOutputStream out = new RingBufferOutputStream(16, null);
+		assertTrue(out.isEmpty());
+		out.write("line 1\n".getBytes("US-ASCII"));
+		out.write('x');
+		assertFalse(out.isEmpty());
+		assertEquals("line 1\nx", out.toString());
+	}
+	
+	/**
+	 * Dropped output is noted, and the text starts at the first complete line.
+	 */
+	@Test
+	public void testDroppedOutput() throws Exception {
+		ByteArrayOutputStream spill = new ByteArrayOutputStream();
+		RingBufferOutputStream out = new RingBufferOutputStream(10, spill);
+		out.write("first\nsecond\nthird\n".getBytes("US-ASCII"));
+		assertEquals("[13 bytes of output omitted]\nthird\n", out.toString());
+		
+		// single bytes wrap around the buffer
+		for (int i = 0; i < 3; ++i) {
+			out.write('a' + i);
+		}
+		assertEquals("[13 bytes of output omitted]\nthird\nabc", out.toString());
+		
+		// the spill stream receives everything
+		assertEquals("first\nsecond\nthird\nabc", spill.toString("US-ASCII"));
+	}
+	
+	/**
+	 * The whole buffer is kept if it holds only part of a single line.
+	 */
+	@Test
+	public void testLongLine() throws Exception {
+		RingBufferOutputStream out = new RingBufferOutputStream(8, null);
+		out.write("abcdefghijklmnop".getBytes("US-ASCII"));
+		assertEquals("[8 bytes of output omitted]\nijklmnop", out.toString());
+		
+		// a trailing newline is not a complete line to start at
+		out.write("qrs\n".getBytes("US-ASCII"));
+		assertEquals("[12 bytes of output omitted]\nmnopqrs\n", out.toString());
+	}
+}
@@ -0,0 +1,144 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link SystemUtils} and {@link PdfMetadata}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class SystemUtilsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * PDF files that differ only in their trailer ID and dates have the same contents.
+	 */
+	@Test
+	public void testContentEqualsIgnoresMetadata() throws Exception {
+		for (int i = 0; i < 2; ++i) {
+			boolean xrefStream = (i == 1);
+			File file1 = writePdf("1.pdf", "0123456789abcdef", "20200101000000", "BT (Hello) Tj ET", xrefStream);
+			File file2 = writePdf("2.pdf", "fedcba9876543210", "20211231235959", "BT (Hello) Tj ET", xrefStream);
+			assertEquals(6, PdfMetadata.findRanges(file1).length);
+			assertTrue(SystemUtils.contentEquals(file1, file2));
+			
+			// the metadata is only ignored for PDF files
+			File copy1 = new File(this.folder.getRoot(), "1.bin");
+			File copy2 = new File(this.folder.getRoot(), "2.bin");
+			Files.copy(file1.toPath(), copy1.toPath());
+			Files.copy(file2.toPath(), copy2.toPath());
+			assertFalse(SystemUtils.contentEquals(copy1, copy2));
+			assertTrue(SystemUtils.contentEquals(copy1, SystemUtils.digestFile(file1, false)));
+			
+			File file3 = writePdf("3.pdf", "0123456789abcdef", "20200101000000", "BT (World) Tj ET", xrefStream);
+			assertFalse(SystemUtils.contentEquals(file1, file3));
+			copy1.delete();
+			copy2.delete();
+		}
+	}
+	
+	/**
+	 * Metadata keys within streams are part of the contents.
+	 */
+	@Test
+	public void testContentEqualsComparesStreams() throws Exception {
+		File file1 = writePdf("1.pdf", "0123456789abcdef", "20200101000000", "/ID(abc) /CreationDate(D:1)", false);
+		File file2 = writePdf("2.pdf", "0123456789abcdef", "20200101000000", "/ID(xyz) /CreationDate(D:1)", false);
+		File file3 = writePdf("3.pdf", "0123456789abcdef", "20200101000000", "/ID(abc) /CreationDate(D:2)", false);
+		assertFalse(SystemUtils.contentEquals(file1, file2));
+		assertFalse(SystemUtils.contentEquals(file1, file3));
+		
+		// files without a proper trailer are compared verbatim
+		File file4 = new File(this.folder.getRoot(), "4.pdf");
+		File file5 = new File(this.folder.getRoot(), "5.pdf");
+		Files.write(file4.toPath(), "%PDF-1.4\n<< /ID [<01>] >>\n".getBytes("ISO-8859-1"));
+		Files.write(file5.toPath(), "%PDF-1.4\n<< /ID [<02>] >>\n".getBytes("ISO-8859-1"));
+		assertEquals(0, PdfMetadata.findRanges(file4).length);
+		assertFalse(SystemUtils.contentEquals(file4, file5));
+	}
+	
+	/**
+	 * Write a minimal PDF file with a cross-reference table or a compressed cross-reference
+	 * stream (using the PNG up predictor as pdfTeX does).
+	 * 
+	 * @param name the file name.
+	 * @param id the trailer ID.
+	 * @param date the creation and modification date.
+	 * @param content the content stream.
+	 * @param xrefStream <code>true</code> to write a cross-reference stream.
+	 * 
+	 * @return the file.
+	 */
+	private File writePdf(String name, String id, String date, String content, boolean xrefStream) throws Exception {
+		String[] objects = new String[] {
+			"<< /Type /Catalog /Pages 2 0 R >>",
+			"<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+			"<< /Type /Page /Parent 2 0 R /Contents 4 0 R >>",
+			"<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream",
+			"<< /Producer (antex) /CreationDate (D:" + date + ") /ModDate (D:" + date + ") >>"
+		};
+		StringBuffer buffer = new StringBuffer("%PDF-1.5\n");
+		int[] offsets = new int[objects.length + 2];
+		for (int i = 0; i < objects.length; ++i) {
+			offsets[i + 1] = buffer.length();
+			buffer.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+		}
+		String trailer = "/Size " + (objects.length + 2) + " /Root 1 0 R /Info 5 0 R /ID [<" + id + "> <" + id + ">]";
+		int startxref = buffer.length();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (xrefStream) {
+			// entries of 1 + 4 + 2 bytes, each row prefixed by the predictor type 2 (up)
+			offsets[objects.length + 1] = startxref;
+			byte[] previous = new byte[7];
+			ByteArrayOutputStream rows = new ByteArrayOutputStream();
+			for (int i = 0; i < offsets.length; ++i) {
+				byte[] row = new byte[] {
+					(byte)((i == 0) ? 0 : 1),
+					(byte)(offsets[i] >> 24), (byte)(offsets[i] >> 16), (byte)(offsets[i] >> 8), (byte)offsets[i],
+					(byte)((i == 0) ? 0xff : 0), (byte)((i == 0) ? 0xff : 0)
+				};
+				rows.write(2);
+				for (int j = 0; j < row.length; ++j) {
+					rows.write(row[j] - previous[j]);
+				}
+				previous = row;
+			}
+			Deflater deflater = new Deflater();
+			deflater.setInput(rows.toByteArray());
+			deflater.finish();
+			byte[] data = new byte[1024];
+			int length = deflater.deflate(data);
+			deflater.end();
+			buffer.append(objects.length + 1).append(" 0 obj\n<< /Type /XRef ").append(trailer)
+					.append(" /W [1 4 2] /Filter /FlateDecode /DecodeParms << /Columns 7 /Predictor 12 >> /Length ")
+					.append(length).append(" >>\nstream\n");
+			out.write(buffer.toString().getBytes("ISO-8859-1"));
+			out.write(data, 0, length);
+			buffer = new StringBuffer("\nendstream\nendobj\n");
+		}
+		else {
+			buffer.append("xref\n0 ").append(objects.length + 1).append("\n0000000000 65535 f \n");
+			for (int i = 1; i <= objects.length; ++i) {
+				buffer.append(String.format("%010d 00000 n \n", Integer.valueOf(offsets[i])));
+			}
+			buffer.append("trailer\n<< ").append(trailer).append(" >>\n");
+		}
+		buffer.append("startxref\n").append(startxref).append("\n%%EOF\n");
+		out.write(buffer.toString().getBytes("ISO-8859-1"));
+		File file = new File(this.folder.getRoot(), name);
+		Files.write(file.toPath(), out.toByteArray());
+		return file;
+	}
+}
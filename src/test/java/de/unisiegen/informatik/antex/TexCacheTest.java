@@ -0,0 +1,53 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link TexCache}, which fall back to empty filename databases if
+ * <code>mktexlsr</code> is not installed.
+ * 
+ * @author Benedikt Meurer
+ */
+public class TexCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * The filename database is only rebuilt if it was modified since it was last built.
+	 */
+	@Test
+	public void testPrepare() throws Exception {
+		Task task = new Task() {
+			// anonymous task for logging
+		};
+		task.setProject(new Project());
+		File dir = new File(this.folder.getRoot(), "cache");
+		File lsR = new File(dir, "ls-R");
+		TexCache.prepare(dir, task);
+		assertTrue(lsR.isFile());
+		assertTrue(new File(dir, "fonts/pk").isDirectory());
+		File stamp = new File(dir, ".stamp");
+		assertTrue(stamp.lastModified() >= lsR.lastModified());
+		
+		// files added without modifying the database do not cause a rebuild
+		Files.write(new File(dir, "fonts/pk/cmr10.600pk").toPath(), new byte[1]);
+		long time = stamp.lastModified();
+		TexCache.prepare(dir, task);
+		assertEquals(time, stamp.lastModified());
+		
+		// but modifications of the database by the tools do
+		assertTrue(lsR.setLastModified(lsR.lastModified() + 10000));
+		TexCache.prepare(dir, task);
+		assertTrue(stamp.lastModified() >= lsR.lastModified());
+	}
+}
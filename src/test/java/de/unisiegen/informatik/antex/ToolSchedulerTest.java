@@ -0,0 +1,122 @@
+package de.unisiegen.informatik.antex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ToolScheduler}.
+ * 
+ * @author Benedikt Meurer
+ */
+public class ToolSchedulerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * A tool with a process limit is started only once a running process terminated.
+	 */
+	@Test
+	public void testProcessLimit() throws Exception {
+		ToolScheduler scheduler = new ToolScheduler();
+		ToolLimit limit = new ToolLimit();
+		limit.setName("pdflatex");
+		limit.setProcesses(1);
+		long estimate = scheduler.acquire("pdflatex", limit, 0);
+		
+		Thread thread = startAcquire(scheduler, "pdflatex", limit, 0);
+		thread.join(200);
+		assertTrue(thread.isAlive());
+		
+		// other tools are not limited
+		scheduler.release("dvips", scheduler.acquire("dvips", null, 0), 0);
+		
+		scheduler.release("pdflatex", estimate, 0);
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+	
+	/**
+	 * The observed peak memory of a tool is used as its estimate for the memory budget.
+	 */
+	@Test
+	public void testMemoryBudget() throws Exception {
+		ToolScheduler scheduler = new ToolScheduler();
+		ToolLimit limit = new ToolLimit();
+		limit.setName("pdflatex");
+		limit.setMemory(100);
+		long estimate = scheduler.acquire("pdflatex", limit, 500);
+		assertEquals(100, estimate);
+		scheduler.release("pdflatex", estimate, 300);
+		
+		// the observed peak exceeds the configured estimate
+		estimate = scheduler.acquire("pdflatex", limit, 500);
+		assertEquals(300, estimate);
+		Thread thread = startAcquire(scheduler, "pdflatex", limit, 500);
+		thread.join(200);
+		assertTrue(thread.isAlive());
+		scheduler.release("pdflatex", estimate, 0);
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+	
+	/**
+	 * The observed peak memory is used by later builds of the project.
+	 */
+	@Test
+	public void testPersistentPeaks() throws Exception {
+		Project project = new Project();
+		project.setBaseDir(this.folder.getRoot());
+		ToolScheduler scheduler = ToolScheduler.getScheduler(project);
+		assertTrue(scheduler == ToolScheduler.getScheduler(project));
+		scheduler.release("pdflatex", scheduler.acquire("pdflatex", null, 500), 300);
+		scheduler.release("dvips", scheduler.acquire("dvips", null, 500), 0);
+		assertTrue(new File(this.folder.getRoot(), ".antex-peaks").isFile());
+		
+		// the next build admits its first process using the peak of the previous build
+		project = new Project();
+		project.setBaseDir(this.folder.getRoot());
+		scheduler = ToolScheduler.getScheduler(project);
+		assertEquals(300, scheduler.acquire("pdflatex", null, 500));
+		assertEquals(0, scheduler.acquire("dvips", null, 500));
+		Thread thread = startAcquire(scheduler, "pdflatex", null, 500);
+		thread.join(200);
+		assertTrue(thread.isAlive());
+		scheduler.release("pdflatex", 300, 0);
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+	
+	/**
+	 * Acquire a process of the <code>tool</code> in a new thread, which exits once admitted.
+	 * 
+	 * @param scheduler the scheduler.
+	 * @param tool the tool name.
+	 * @param limit the limit for the tool, or <code>null</code>.
+	 * @param budget the memory budget in megabytes, or <code>0</code> if unlimited.
+	 * 
+	 * @return the thread.
+	 */
+	private static Thread startAcquire(final ToolScheduler scheduler, final String tool, final ToolLimit limit, final long budget) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					scheduler.acquire(tool, limit, budget);
+				}
+				catch (InterruptedException e) {
+					// exit
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}